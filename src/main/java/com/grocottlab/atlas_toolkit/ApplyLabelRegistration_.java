@@ -24,15 +24,22 @@ package com.grocottlab.atlas_toolkit;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
 import ij.io.Opener;
+import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
 import java.util.Date;
 
 /**
  * A class for applying an Orthogonal Transform Sequence to an image stack.
  * 
+ * By default each plane transform is applied in turn, as the sequence was registered. The single pass option
+ * instead composes the whole sequence into one 3D displacement field and resamples the image once. This is
+ * faster and blurs less, but its output is not identical to plane by plane application, and with a field spacing
+ * above 1 the displacements between nodes are interpolated, so it has to be chosen explicitly.
+ * 
  * This class is called by the Atlas Toolkit menu command "4. Apply Label Registration".
  * 
  */
@@ -41,18 +48,24 @@ public class ApplyLabelRegistration_ implements PlugIn {
     @Override
 	public void run(String arg) {
 
-		// Load the input image
+		// Choose the input image, which is opened once the options are known
 		OpenDialog od = new OpenDialog("Select source image... - ATLAS Toolkit", "");
 		Opener op = new Opener();
-		ImagePlus source_image = op.openImage(od.getDirectory(), od.getFileName());
+		String source_path = od.getDirectory() + od.getFileName();
 		//ImagePlus input = source_image;
 		//input.show();
-                String name = source_image.getTitle();
+                String name = od.getFileName();
 		
 		// Load orthogonal transform sequences
 		od = new OpenDialog("Select orthogonal transform sequence... - ATLAS Toolkit", "");
-                OrthogonalTransformSequence ots = OrthogonalTransformSequence.openOTS(od.getDirectory() + od.getFileName());
-                
+                String ots_path = od.getDirectory() + od.getFileName();
+                OrthogonalTransformSequence ots = OrthogonalTransformSequence.openOTS(ots_path);
+		if (ots == null) {
+
+			IJ.error("Apply Label Registration", "Could not open orthogonal transform sequence " + ots_path);
+			return;
+		}
+
                 // Get number of iterations in orthogonal transform sequence
                 int iterationCount = ots.getIterations();
                 
@@ -60,9 +73,21 @@ public class ApplyLabelRegistration_ implements PlugIn {
                 GenericDialog gd = new GenericDialog("How many iterations should be applied? - ATLAS toolkit");
 		int iterations = iterationCount;
                 gd.addNumericField("Number of iterations: ", iterations, 0);
+                gd.addCheckbox("8-bit label image (nearest neighbour)", false);
+                gd.addCheckbox("Single pass (composed 3D displacement field)", false);
+                gd.addNumericField("Field spacing (voxels): ", 2, 0);
+                gd.addCheckbox("Cache field next to .ots", true);
+                gd.addCheckbox("Stream from disk (single pass only)", false);
+                gd.addNumericField("Memory budget (MB): ", (IJ.maxMemory() / 2) >> 20, 0);
                 gd.showDialog();
 		if (gd.wasCanceled()) return;
                 iterations = (int)gd.getNextNumber();
+                boolean labels = gd.getNextBoolean();
+                boolean single_pass = gd.getNextBoolean();
+                int spacing = Math.max((int)gd.getNextNumber(), 1);
+                boolean cache = gd.getNextBoolean();
+                boolean stream = gd.getNextBoolean() && single_pass;
+                long memory_budget = Math.max((long)gd.getNextNumber(), 1) << 20;
                 if (iterations > iterationCount) {
                     iterations = iterationCount;
                 } else if (iterations <=0) {
@@ -72,44 +97,107 @@ public class ApplyLabelRegistration_ implements PlugIn {
 		// Get start_time
 		long start_time = new Date().getTime();
 
-		// Define ImagePlus for holding resliced_images and registered_images
-		ImagePlus resliced_image;// = new ImagePlus[1];
+		if (stream) {
+
+			// Read, transform and write the image slab by slab, so it need not fit in memory
+			applyStreaming(source_path, name, ots, ots_path, iterations, spacing, cache, labels, memory_budget);
+			return;
+		}
+		ImagePlus source_image = op.openImage(source_path);
+
+		// Rescale the sequence if it was computed at a different resolution, e.g. on down-sampled labels
+		ots = ots.getScaled(new int[] {source_image.getWidth(), source_image.getHeight(), source_image.getStackSize()});
+
+		if (single_pass) {
+
+			// Compose the sequence into a single 3D field, then resample the image once
+			DisplacementField3D field = DisplacementField3D.openOrCompose(ots, ots_path, iterations, source_image.getWidth(), source_image.getHeight(),
+										      source_image.getStackSize(), spacing, cache);
+			IJ.showStatus("Applying displacement field...");
+			source_image = field.applyTo(source_image, labels && source_image.getBitDepth() == 8);
+
+		} else {
+
+			source_image = applyPlaneByPlane(source_image, ots, iterations, labels);
+		}
+		
+		// Get end_time
+		final long end_time = new Date().getTime();
+		long elapsed_time = end_time - start_time;
+		int min_elapsed = (int)((elapsed_time / 1000) / 60);
+		IJ.log("Transformed image in " + min_elapsed + " minutes!");
+
+		// Show registered_images
+                source_image.setTitle(name);
+		source_image.show();
+	}
+
+	/**
+	 * Applies the first iterations of a sequence to an image plane by plane, in the order it was registered.
+	 *
+	 * @param source_image The image to transform, which is consumed.
+	 * @param ots The sequence, already scaled to the dimensions of source_image.
+	 * @param iterations The number of iterations to apply.
+	 * @param labels True to warp an 8-bit label image by nearest-neighbour lookup.
+	 * @return The transformed image.
+	 */
+	static ImagePlus applyPlaneByPlane(ImagePlus source_image, OrthogonalTransformSequence ots, int iterations, boolean labels) {
+
+		// Define a view for holding resliced_images
+		PermutedVolume resliced_image;
 
-		// Determine the number of iterations included in sequence
-                //int iteration_count = ots.getIterations();
-                
 		// Iterate through iterations
 		IJ.showStatus("Begin...");
 		for (int i = 0; i < iterations; i++) {
-		
+
 			IJ.log("iteration " + (i+1) + " of " + iterations);
 			// Iterate through orthognal planes
 			for (OrthogonalTransformSequence.OrthogonalPlane orthoplane : OrthogonalTransformSequence.OrthogonalPlane.values()) {
 
 				IJ.log("orthoplane " + orthoplane);
-				OrthogonalTransformSequence.OrthogonalPlane current_plane = orthoplane;
 
-				// Reslice current source image
+				// Reslice current source image as a permuted view, rather than a copy
 				IJ.log("Reslicing image.");
-				resliced_image = LabelRegistration3D_.reslice(source_image);
+				resliced_image = new PermutedVolume(source_image, 1);
+				source_image = null;
 
 				// Register source_image
 				IJ.log("\n-----\nOrthogonal Plane " + orthoplane + "\n-----\n");
 				StackRegister sr = new StackRegister(resliced_image);
+				sr.setLabels(labels);
 				source_image = sr.getTransformedImage(ots.getOrthogonalTransform(orthoplane, i));
 			}
 		}
-		
-		// Get end_time
-		final long end_time = new Date().getTime();
-		long elapsed_time = end_time - start_time;
-		int min_elapsed = (int)((elapsed_time / 1000) / 60);
-		IJ.log("Transformed image in " + min_elapsed + " minutes!");
 
-		// Show registered_images
-                source_image.setTitle(name);
-		source_image.show();
+		return source_image;
 	}
-}
 
+	private void applyStreaming(String source_path, String name, OrthogonalTransformSequence ots, String ots_path, int iterations, int spacing,
+				    boolean cache, boolean labels, long memory_budget) {
+
+		/*
+		 *  Open the source as a virtual stack, if possible, and save the transformed image as it is computed.
+		 */
+
+		ImageStack source_stack = TransformedVirtualStack.openVirtual(source_path);
+		if (source_stack == null) {
 
+			IJ.log(name + " cannot be read slice by slice, so it will be opened in memory");
+			source_stack = new Opener().openImage(source_path).getStack();
+		}
+		SaveDialog sd = new SaveDialog("Save transformed image... - ATLAS Toolkit", name, ".tif");
+		if (sd.getFileName() == null) return;
+		String output_path = sd.getDirectory() + sd.getFileName();
+
+		DisplacementField3D field = DisplacementField3D.openOrComposeMapped(ots, ots_path, iterations, source_stack.getWidth(), source_stack.getHeight(),
+										    source_stack.getSize(), spacing, cache);
+		IJ.showStatus("Applying displacement field...");
+		boolean saved = TransformedVirtualStack.saveAsTiff(source_stack, field, labels && source_stack.getBitDepth() == 8, memory_budget, name, output_path);
+		if (!saved) return;
+		IJ.log("Saved transformed image to " + output_path);
+
+		// Show the result without loading it
+		ImageStack output_stack = TransformedVirtualStack.openVirtual(output_path);
+		if (output_stack != null) new ImagePlus(name, output_stack).show();
+	}
+}
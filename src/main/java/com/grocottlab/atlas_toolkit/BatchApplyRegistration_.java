@@ -0,0 +1,339 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.OpenDialog;
+import ij.io.Opener;
+import ij.plugin.PlugIn;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A class for applying the Orthogonal Transform Sequences of many specimens to all of their channels.
+ *
+ * The specimens are listed in a manifest: a text file with one specimen per line, giving the path of
+ * its ".ots" file followed by the paths of its channel stacks, separated by tabs or commas. Relative
+ * paths are resolved against the folder of the manifest, and blank lines and lines starting with "#"
+ * are ignored. For example:
+ *
+ *   embryo01.tif.ots, embryo01_c1.tif, embryo01_c2.tif
+ *
+ * Specimens are processed concurrently on a pool of workers. Each specimen's sequence is read once and
+ * applied to every channel plane by plane, as "Apply Label Registration" does by default. With the single
+ * pass option, as there, the sequence is instead composed once into a DisplacementField3D, which is then
+ * applied to every channel in a single pass; its output is not identical to plane by plane application.
+ * Each transformed channel is saved as the name of its ".ots" file, less ".ots" and any image extension,
+ * then "_" and the name of the channel, e.g. "embryo01_embryo01_c1.tif", so that channels of the same
+ * name from different specimens do not overwrite each other.
+ *
+ * This class is called by the Atlas Toolkit menu command "4b. Batch Apply Label Registration".
+ *
+ */
+public class BatchApplyRegistration_ implements PlugIn {
+
+	private int iterations = 0;		// 0 = every iteration in each sequence
+	private boolean single_pass = false;
+	private int spacing = 2;
+	private boolean cache = true;
+	private boolean labels = false;
+	private int worker_count = 2;
+
+	@Override
+	public void run(String arg) {
+
+		// Load the manifest
+		OpenDialog od = new OpenDialog("Select manifest of specimens... - ATLAS toolkit", "");
+		if (od.getFileName() == null) return;
+		List<String[]> specimens;
+		try {
+
+			specimens = readManifest(od.getDirectory() + od.getFileName());
+
+		} catch (IOException e) {
+
+			IJ.error("Batch Apply Label Registration", "Could not read manifest: " + e.getMessage());
+			return;
+		}
+		if (specimens.isEmpty()) {
+
+			IJ.error("Batch Apply Label Registration", "The manifest does not list any specimens.");
+			return;
+		}
+
+		GenericDialog gd = new GenericDialog("Batch Apply Label Registration - ATLAS toolkit");
+		gd.addNumericField("Number of iterations (0 = all): ", iterations, 0);
+		gd.addCheckbox("8-bit label images (nearest neighbour)", labels);
+		gd.addCheckbox("Single pass (composed 3D displacement field)", single_pass);
+		gd.addNumericField("Field spacing (voxels): ", spacing, 0);
+		gd.addCheckbox("Cache fields next to .ots", cache);
+		gd.addNumericField("Specimens in parallel: ", worker_count, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		iterations = Math.max((int)gd.getNextNumber(), 0);
+		labels = gd.getNextBoolean();
+		single_pass = gd.getNextBoolean();
+		spacing = Math.max((int)gd.getNextNumber(), 1);
+		cache = gd.getNextBoolean();
+		worker_count = Math.max((int)gd.getNextNumber(), 1);
+
+		String duplicate = getDuplicateOutputName(specimens);
+		if (duplicate != null) {
+
+			IJ.error("Batch Apply Label Registration", "More than one channel in the manifest would be saved as " + duplicate);
+			return;
+		}
+
+		DirectoryChooser dc = new DirectoryChooser("Select folder to save transformed channels... - ATLAS toolkit");
+		if (dc.getDirectory() == null) return;
+
+		// Get start_time
+		long start_time = new Date().getTime();
+
+		int failures = applyAll(specimens, dc.getDirectory());
+
+		// Get end_time
+		final long end_time = new Date().getTime();
+		long elapsed_time = end_time - start_time;
+		int min_elapsed = (int)((elapsed_time / 1000) / 60);
+		IJ.log("Transformed " + (specimens.size() - failures) + " of " + specimens.size() + " specimens in " + min_elapsed + " minutes!");
+		IJ.showStatus("");
+	}
+
+	/**
+	 * Reads a manifest of specimens.
+	 *
+	 * @param path The absolute path of the manifest.
+	 * @return A list with one entry per specimen: the absolute path of its ".ots" file followed by the absolute paths of its channels.
+	 * @throws IOException If the manifest cannot be read, or a specimen lists no channels.
+	 */
+	static public List<String[]> readManifest(String path) throws IOException {
+
+		File folder = new File(path).getAbsoluteFile().getParentFile();
+		List<String[]> specimens = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+
+			int line_number = 0;
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+
+				line_number++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				String[] entries = line.split("[\t,]");
+				List<String> paths = new ArrayList<String>();
+				for (int i = 0; i < entries.length; i++) {
+
+					String entry = entries[i].trim();
+					if (entry.length() == 0) continue;
+					File file = new File(entry);
+					if (!file.isAbsolute()) file = new File(folder, entry);
+					paths.add(file.getPath());
+				}
+				if (paths.isEmpty()) continue;
+				if (paths.size() < 2) throw new IOException("Line " + line_number + " lists no channels for " + paths.get(0));
+				specimens.add(paths.toArray(new String[paths.size()]));
+			}
+
+		} finally {
+
+			reader.close();
+		}
+
+		return specimens;
+	}
+
+	/**
+	 * Gets the name under which a transformed channel is saved: the name of the specimen's ".ots" file, less ".ots" and any
+	 * image extension, then "_" and the name of the channel, as a TIFF.
+	 *
+	 * @param paths The paths of a specimen, as returned by readManifest.
+	 * @param channel The index of the channel in paths, from 1.
+	 * @return The file name of the transformed channel.
+	 */
+	static public String getOutputName(String[] paths, int channel) {
+
+		String specimen = new File(paths[0]).getName();
+		if (specimen.toLowerCase().endsWith(".ots")) specimen = specimen.substring(0, specimen.length() - ".ots".length());
+		int extension = specimen.lastIndexOf('.');
+		if (extension > 0) specimen = specimen.substring(0, extension);
+		String name = specimen + "_" + new File(paths[channel]).getName();
+		if (!name.toLowerCase().endsWith(".tif") && !name.toLowerCase().endsWith(".tiff")) name = name + ".tif";
+
+		return name;
+	}
+
+	/**
+	 * @param specimens The specimens, as returned by readManifest.
+	 * @return An output name that more than one channel would be saved as, or null if every name is different.
+	 */
+	static public String getDuplicateOutputName(List<String[]> specimens) {
+
+		Set<String> names = new HashSet<String>();
+		for (String[] paths : specimens) {
+			for (int channel = 1; channel < paths.length; channel++) {
+
+				String name = getOutputName(paths, channel);
+				if (!names.add(name.toLowerCase())) return name;	// Case-insensitive file systems would overwrite it too
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Transforms the channels of every specimen, saving each as a TIFF named by getOutputName.
+	 *
+	 * @param specimens The specimens, as returned by readManifest.
+	 * @param output_directory The folder in which to save the transformed channels.
+	 * @return The number of specimens that could not be transformed.
+	 * @throws IllegalArgumentException If two channels would be saved under the same name.
+	 */
+	public int applyAll(final List<String[]> specimens, final String output_directory) {
+
+		String duplicate = getDuplicateOutputName(specimens);
+		if (duplicate != null) throw new IllegalArgumentException("More than one channel would be saved as " + duplicate);
+
+		final int specimen_count = specimens.size();
+		final AtomicInteger specimens_done = new AtomicInteger(0);
+		int workers = Math.min(worker_count, specimen_count);
+		IJ.log("\n-----\nTransforming " + specimen_count + " specimens on " + workers + " threads...\n-----\n");
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<Future<?>> futures = new ArrayList<Future<?>>(specimen_count);
+		for (int specimen = 0; specimen < specimen_count; specimen++) {
+
+			final String[] paths = specimens.get(specimen);
+			futures.add(pool.submit(new Runnable() {
+
+				public void run() {
+
+					applySpecimen(paths, output_directory);
+					int done = specimens_done.incrementAndGet();
+					IJ.showStatus("Transformed " + done + " of " + specimen_count + " specimens");
+				}
+			}));
+		}
+
+		// Wait for every specimen, carrying on past any that fail
+		int failures = 0;
+		try {
+
+			for (int specimen = 0; specimen < specimen_count; specimen++) {
+
+				try {
+
+					futures.get(specimen).get();
+
+				} catch (ExecutionException e) {
+
+					IJ.log("Could not transform specimen " + specimens.get(specimen)[0] + ": " + e.getCause());
+					failures++;
+				}
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Batch transformation was interrupted", e);
+
+		} finally {
+
+			pool.shutdownNow();
+		}
+
+		return failures;
+	}
+
+	private void applySpecimen(String[] paths, String output_directory) {
+
+		/*
+		 *  Read the specimen's sequence once, then transform each channel through the sequence scaled, or the field
+		 *  composed, once for each distinct channel size (normally one).
+		 */
+
+		String ots_path = paths[0];
+		OrthogonalTransformSequence ots = OrthogonalTransformSequence.openOTS(ots_path);
+		if (ots == null) throw new RuntimeException("Could not open " + ots_path);
+		int specimen_iterations = (iterations == 0) ? ots.getIterations() : Math.min(iterations, ots.getIterations());
+
+		Map<String, DisplacementField3D> fields = new HashMap<String, DisplacementField3D>();
+		Map<String, OrthogonalTransformSequence> scaled_ots = new HashMap<String, OrthogonalTransformSequence>();
+		Opener op = new Opener();
+		for (int channel = 1; channel < paths.length; channel++) {
+
+			IJ.log("Transforming " + paths[channel]);
+			ImagePlus source_image = op.openImage(paths[channel]);
+			if (source_image == null) throw new RuntimeException("Could not open " + paths[channel]);
+
+			int width = source_image.getWidth();
+			int height = source_image.getHeight();
+			int depth = source_image.getStackSize();
+			String size = width + "x" + height + "x" + depth;
+			boolean label_image = labels && source_image.getBitDepth() == 8;
+			ImagePlus transformed_image;
+			if (single_pass) {
+
+				// Compose or re-use the field for this channel's dimensions
+				DisplacementField3D field = fields.get(size);
+				if (field == null) {
+
+					field = DisplacementField3D.openOrCompose(ots, ots_path, specimen_iterations, width, height, depth, spacing, cache);
+					fields.put(size, field);
+				}
+				transformed_image = field.applyTo(source_image, label_image);
+
+			} else {
+
+				// Scale or re-use the sequence for this channel's dimensions
+				OrthogonalTransformSequence channel_ots = scaled_ots.get(size);
+				if (channel_ots == null) {
+
+					channel_ots = ots.getScaled(new int[] {width, height, depth});
+					scaled_ots.put(size, channel_ots);
+				}
+				transformed_image = ApplyLabelRegistration_.applyPlaneByPlane(source_image, channel_ots, specimen_iterations, label_image);
+			}
+			source_image = null;
+			String output_path = output_directory + File.separator + getOutputName(paths, channel);
+			if (!IJ.saveAsTiff(transformed_image, output_path)) throw new RuntimeException("Could not save " + output_path);
+		}
+	}
+}
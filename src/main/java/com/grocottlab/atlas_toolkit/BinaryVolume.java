@@ -0,0 +1,219 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * A binary label volume packed at one bit per voxel.
+ *
+ * Isolated labels are 0 or 255, so holding them as 8-bit stacks spends eight times the memory they need.
+ * Packing keeps each slice as a run of bits in row order, and slices are unpacked back to 8-bit 0/255
+ * processors, one at a time or as a whole stack, only when they are needed. A volume isolating several
+ * labels, each at its own grey level, is packed at the few bits per voxel needed to tell those levels apart.
+ *
+ */
+public class BinaryVolume {
+
+	private byte[][] bits;		// One packed array per slice, 8 / bits_per_voxel voxels per byte
+	private int width;
+	private int height;
+	private int depth;
+	private String title;
+	private Calibration calibration;
+	private int bits_per_voxel;	// 1, 2, 4 or 8, so that no voxel spans two bytes
+	private byte[] levels;		// The grey level of each code, where code 0 is the background
+	private byte[] codes;		// The code of each 8-bit grey level
+
+	/**
+	 * Packs an image, setting the voxels that are not zero.
+	 *
+	 * @param image The label image, of any type.
+	 */
+	public BinaryVolume(ImagePlus image) {
+
+		this(image, new int[] {255});
+	}
+
+	/**
+	 * Packs an image of several labels, each at its own grey level.
+	 *
+	 * @param image The label image, of any type, whose voxels are 0 or one of levels.
+	 * @param levels The grey levels of the labels, from 1 to 255. A single level packs every non-zero voxel at one bit.
+	 */
+	public BinaryVolume(ImagePlus image, int[] levels) {
+
+		final ImageStack stack = image.getStack();
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+		title = image.getTitle();
+		calibration = image.getCalibration().copy();
+		bits = new byte[depth][];
+		bits_per_voxel = 1;
+		while ((1 << bits_per_voxel) <= levels.length) bits_per_voxel <<= 1;
+		this.levels = new byte[levels.length + 1];
+		codes = new byte[256];
+		for (int level = 0; level < levels.length; level++) {
+
+			this.levels[level + 1] = (byte)levels[level];
+			codes[levels[level] & 0xff] = (byte)(level + 1);
+		}
+		if (levels.length == 1) Arrays.fill(codes, 1, 256, (byte)1);
+
+		// Pack each slice as an independent task
+		WorkerPool.forEach(depth, new WorkerPool.IndexedTask() {
+
+			public void run(int z) {
+
+				bits[z] = pack(stack.getProcessor(z + 1));
+			}
+		});
+	}
+
+	public int getWidth() {
+
+		return width;
+	}
+
+	public int getHeight() {
+
+		return height;
+	}
+
+	public int getSize() {
+
+		return depth;
+	}
+
+	/**
+	 * @return The grey levels of the labels, from 1 to 255.
+	 */
+	public int[] getLevels() {
+
+		int[] label_levels = new int[levels.length - 1];
+		for (int level = 0; level < label_levels.length; level++) label_levels[level] = levels[level + 1] & 0xff;
+
+		return label_levels;
+	}
+
+	/**
+	 * @return True if the voxel is set.
+	 */
+	public boolean get(int x, int y, int z) {
+
+		return getCode(bits[z], (y * width) + x) != 0;
+	}
+
+	/**
+	 * Unpacks a slice.
+	 *
+	 * @param slice The slice number, from 1 to getSize().
+	 * @return An 8-bit processor in which set voxels have their label's grey level, e.g. 255, and all others are 0.
+	 */
+	public ImageProcessor getProcessor(int slice) {
+
+		byte[] packed = bits[slice - 1];
+		byte[] pixels = new byte[width * height];
+		if (bits_per_voxel == 1) {
+
+			for (int i = 0; i < pixels.length; i++) {
+
+				if ((packed[i >> 3] & (1 << (i & 7))) != 0) pixels[i] = levels[1];
+			}
+
+		} else {
+
+			for (int i = 0; i < pixels.length; i++) pixels[i] = levels[getCode(packed, i)];
+		}
+
+		return new ByteProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * Unpacks the whole volume.
+	 *
+	 * @return A new 8-bit ImagePlus in which set voxels have their label's grey level, e.g. 255, and all others are 0.
+	 */
+	public ImagePlus toImagePlus() {
+
+		final ImageProcessor[] processors = new ImageProcessor[depth];
+		WorkerPool.forEach(depth, new WorkerPool.IndexedTask() {
+
+			public void run(int z) {
+
+				processors[z] = getProcessor(z + 1);
+			}
+		});
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+
+			stack.addSlice(null, processors[z]);
+		}
+		ImagePlus image = new ImagePlus(title, stack);
+		image.setCalibration(calibration.copy());
+
+		return image;
+	}
+
+	private int getCode(byte[] packed, int i) {
+
+		int offset = i * bits_per_voxel;
+
+		return (packed[offset >> 3] >> (offset & 7)) & ((1 << bits_per_voxel) - 1);
+	}
+
+	private byte[] pack(ImageProcessor ip) {
+
+		int pixel_count = ip.getWidth() * ip.getHeight();
+		byte[] packed = new byte[(int)(((long)pixel_count * bits_per_voxel + 7) >> 3)];
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) {
+
+			// Read 8-bit slices directly, as they are the usual case
+			byte[] values = (byte[])pixels;
+			for (int i = 0; i < pixel_count; i++) {
+
+				int offset = i * bits_per_voxel;
+				packed[offset >> 3] |= (byte)(codes[values[i] & 0xff] << (offset & 7));
+			}
+
+		} else {
+
+			for (int i = 0; i < pixel_count; i++) {
+
+				float value = ip.getf(i);
+				int code = (value == 0) ? 0 : (levels.length == 2) ? 1 : (value > 0 && value < 256) ? codes[(int)value] : 0;
+				int offset = i * bits_per_voxel;
+				packed[offset >> 3] |= (byte)(code << (offset & 7));
+			}
+		}
+
+		return packed;
+	}
+}
@@ -0,0 +1,258 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import bunwarpj.BSplineModel;
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A dense 2D (XY) deformation field, evaluated once from the B-spline coefficients of an OrthogonalTransform.
+ *
+ * For every target pixel the field holds the source coordinates to be sampled, exactly as bUnwarpJ
+ * computes them when applying a transform. Since the same 2D transform is applied to every slice
+ * of a stack, the field is evaluated once and then used to resample all slices.
+ *
+ */
+public class DeformationField {
+
+	private int width;
+	private int height;
+	private double[] x_map;	// Source x coordinate for each target pixel
+	private double[] y_map;	// Source y coordinate for each target pixel
+
+	/**
+	 * Evaluates the deformation described by ot at every pixel of a width x height image.
+	 *
+	 * @param ot The OrthogonalTransform holding the B-spline coefficients generated by bUnwarpJ.
+	 * @param width The width of the target image.
+	 * @param height The height of the target image.
+	 */
+	public DeformationField(OrthogonalTransform ot, int width, int height) {
+
+		this.width = width;
+		this.height = height;
+		x_map = new double[width * height];
+		y_map = new double[width * height];
+
+		final double[][] x_coefficients = ot.getCoefficientsX();
+		final double[][] y_coefficients = ot.getCoefficientsY();
+		final int intervals = ot.getIntervals();
+
+		// Share bands of rows between the workers of the WorkerPool, which a registration calling this from one of its own
+		// image tasks helps to run rather than starting threads of its own; each band needs its own interpolators
+		final int band_count = getThreadCount(height);
+		WorkerPool.forEach(band_count, new WorkerPool.IndexedTask() {
+
+			public void run(int band) {
+
+				BSplineModel swx = new BSplineModel(x_coefficients);
+				BSplineModel swy = new BSplineModel(y_coefficients);
+				int last_row = (int)(((long)(band + 1) * DeformationField.this.height) / band_count);
+				for (int v = (int)(((long)band * DeformationField.this.height) / band_count); v < last_row; v++) {
+
+					evaluateRow(swx, swy, intervals, v);
+				}
+			}
+		});
+	}
+
+	private void evaluateRow(BSplineModel swx, BSplineModel swy, int intervals, int v) {
+
+		// Map target pixels onto the B-spline grid, as bUnwarpJ does
+		final double tv = (double)(v * intervals) / (double)(height - 1) + 1.0;
+		for (int u = 0; u < width; u++) {
+
+			final double tu = (double)(u * intervals) / (double)(width - 1) + 1.0;
+			x_map[(v * width) + u] = swx.prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+			y_map[(v * width) + u] = swy.prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+		}
+	}
+
+	public int getWidth() {
+
+		return width;
+	}
+
+	public int getHeight() {
+
+		return height;
+	}
+
+	/**
+	 * Resamples a single image through the field using cubic B-spline interpolation, as bUnwarpJ does.
+	 *
+	 * @param ip The source image.
+	 * @return A new FloatProcessor of the field's dimensions, or a ColorProcessor if ip is RGB. Pixels that
+	 * map outside the source are set to zero.
+	 */
+	public ImageProcessor applyTo(ImageProcessor ip) {
+
+		if (ip instanceof ColorProcessor) {
+
+			// Transform each channel separately
+			ColorProcessor cp = new ColorProcessor(width, height);
+			for (int channel = 0; channel < 3; channel++) {
+
+				cp.setPixels(channel, resample(((ColorProcessor)ip).toFloat(channel, null)));
+			}
+			return cp;
+		}
+
+		return resample(ip);
+	}
+
+	private FloatProcessor resample(ImageProcessor ip) {
+
+		// Calculate the B-spline coefficients of the source image
+		BSplineModel source = new BSplineModel(ip, false, 1);
+		source.setPyramidDepth(0);
+		source.startPyramids();
+		try {
+
+			source.getThread().join();
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while preparing image for transformation", e);
+		}
+
+		int source_width = source.getWidth();
+		int source_height = source.getHeight();
+		float[] output = new float[width * height];
+		for (int i = 0; i < output.length; i++) {
+
+			double x = x_map[i];
+			double y = y_map[i];
+			if (x >= 0 && x < source_width && y >= 0 && y < source_height) {
+
+				output[i] = (float)source.prepareForInterpolationAndInterpolateI(x, y, false, false);
+			}
+		}
+		FloatProcessor fp = new FloatProcessor(width, height, output, null);
+		fp.resetMinAndMax();
+
+		return fp;
+	}
+
+	/**
+	 * Resamples a single 8-bit label image through the field by nearest-neighbour lookup.
+	 *
+	 * Label values are copied rather than interpolated, so labels stay crisp and no float intermediate is needed.
+	 *
+	 * @param pixels The source pixels.
+	 * @param source_width The width of the source image.
+	 * @param source_height The height of the source image.
+	 * @return The pixels of the transformed image, of the field's dimensions. Pixels that map outside the source are set to zero.
+	 */
+	public byte[] applyToLabels(byte[] pixels, int source_width, int source_height) {
+
+		byte[] output = new byte[width * height];
+		for (int i = 0; i < output.length; i++) {
+
+			double x = x_map[i];
+			double y = y_map[i];
+			if (x >= 0 && x < source_width && y >= 0 && y < source_height) {
+
+				int nearest_x = Math.min((int)(x + 0.5), source_width - 1);
+				int nearest_y = Math.min((int)(y + 0.5), source_height - 1);
+				output[i] = pixels[(nearest_y * source_width) + nearest_x];
+			}
+		}
+
+		return output;
+	}
+
+	/**
+	 * Resamples every slice of a volume through the field, sharing slices between the workers of the WorkerPool.
+	 *
+	 * @param volume The source volume, which may be an axis-permuted view.
+	 * @param progressWindow A ProgressWindow for user feedback, or null.
+	 * @return A new ImageStack of transformed slices. 8-bit volumes are converted back to 8-bit without scaling.
+	 */
+	public ImageStack applyTo(PermutedVolume volume, ProgressWindow progressWindow) {
+
+		return applyTo(volume, progressWindow, false);
+	}
+
+	/**
+	 * Resamples every slice of a volume through the field, sharing slices between the workers of the WorkerPool.
+	 *
+	 * @param volume The source volume, which may be an axis-permuted view.
+	 * @param progressWindow A ProgressWindow for user feedback, or null.
+	 * @param labels If true and the volume is 8-bit, treat it as a label volume and use nearest-neighbour lookup.
+	 * @return A new ImageStack of transformed slices. 8-bit volumes are returned as 8-bit.
+	 */
+	public ImageStack applyTo(final PermutedVolume volume, final ProgressWindow progressWindow, boolean labels) {
+
+		final boolean nearest_neighbour = labels && (volume.getBitDepth() == 8);
+
+		final int stack_size = volume.getSize();
+		final ImageProcessor[] output = new ImageProcessor[stack_size];
+		final AtomicInteger slices_done = new AtomicInteger(0);
+		WorkerPool.forEach(stack_size, new WorkerPool.IndexedTask() {
+
+			public void run(int index) {
+
+				// Transform the current slice
+				ImageProcessor ip = volume.getProcessor(index + 1);
+				if (nearest_neighbour) {
+
+					ip = new ByteProcessor(width, height, applyToLabels((byte[])ip.getPixels(), ip.getWidth(), ip.getHeight()), null);
+
+				} else {
+
+					ip = applyTo(ip);
+					if (volume.getBitDepth() == 8) ip = ip.convertToByte(false);
+				}
+				output[index] = ip;
+
+				// Update progress every ten slices
+				int done = slices_done.incrementAndGet();
+				if (done % 10 == 0) {
+					IJ.showProgress(done, stack_size);
+					if (progressWindow != null) progressWindow.showProgress(1, done, stack_size);
+				}
+			}
+		});
+
+		ImageStack stack = new ImageStack(width, height);
+		for (int slice = 0; slice < stack_size; slice++) {
+
+			stack.addSlice(null, output[slice]);
+		}
+
+		return stack;
+	}
+
+	static int getThreadCount(int tasks) {
+
+		return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tasks));
+	}
+}
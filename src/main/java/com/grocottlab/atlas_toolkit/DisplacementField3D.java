@@ -0,0 +1,770 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import bunwarpj.BSplineModel;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A 3D (XYZ) displacement field composed from all of the plane transforms of an OrthogonalTransformSequence.
+ *
+ * Applying a sequence plane by plane reslices and resamples the whole volume three times per iteration.
+ * Instead, the field traces each output voxel back through every 2D transform in turn, evaluating the
+ * B-splines at the exact intermediate coordinates, so that the volume is resampled only once.
+ *
+ * Displacements are held on a grid of nodes every spacing voxels and are interpolated trilinearly in
+ * between. A voxel that any transform maps outside the volume is marked with NaN and is set to zero.
+ * The field can be saved to and opened from a little-endian binary file, so that it is composed once
+ * and then applied to every channel of the same source. A field opened from a file, or composed straight
+ * into one, is memory-mapped rather than read onto the heap, so that a volume streamed slab by slab needs
+ * only the planes of nodes around the current slab to be resident.
+ *
+ */
+public class DisplacementField3D {
+
+	static final int FIELD_MAGIC = 0x42334644;	// "DF3B" when written little-endian
+	static final int FIELD_VERSION = 1;
+	static final int HEADER_BYTES = 4 * 7;
+
+	private int width;
+	private int height;
+	private int depth;
+	private int spacing;
+	private int iterations;
+	private int[] node_count = new int[3];	// Number of nodes in x, y and z
+	private FloatBuffer[] displacement;	// [z node].get((y node * x nodes + x node) * 3 + axis), on the heap or mapped from a file
+
+	private DisplacementField3D(int width, int height, int depth, int spacing, int iterations) {
+
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.spacing = Math.max(spacing, 1);
+		this.iterations = iterations;
+		node_count[0] = getNodeCount(width, this.spacing);
+		node_count[1] = getNodeCount(height, this.spacing);
+		node_count[2] = getNodeCount(depth, this.spacing);
+		displacement = new FloatBuffer[node_count[2]];
+	}
+
+	/**
+	 * Composes the first iterations of a sequence into a single displacement field.
+	 *
+	 * If the sequence was computed on an image of different dimensions, it is rescaled to fit this volume.
+	 *
+	 * @param ots The orthogonal transform sequence.
+	 * @param iterations The number of iterations to compose.
+	 * @param width The width of the volume to be transformed.
+	 * @param height The height of the volume to be transformed.
+	 * @param depth The depth of the volume to be transformed.
+	 * @param spacing The distance in voxels between nodes of the field, 1 for a dense field.
+	 * @return The composed DisplacementField3D.
+	 */
+	static public DisplacementField3D compose(OrthogonalTransformSequence ots, int iterations, int width, int height, int depth, int spacing) {
+
+		final DisplacementField3D field = new DisplacementField3D(width, height, depth, spacing, iterations);
+		try {
+
+			field.composePlanes(ots, null);
+
+		} catch (IOException e) {
+
+			throw new RuntimeException(e);	// Not thrown without a file
+		}
+
+		return field;
+	}
+
+	/**
+	 * Composes the first iterations of a sequence into a field file, one plane of nodes at a time, then maps the
+	 * file into memory. Only one plane of nodes per worker is held on the heap, however large the field.
+	 *
+	 * @param ots The orthogonal transform sequence.
+	 * @param iterations The number of iterations to compose.
+	 * @param width The width of the volume to be transformed.
+	 * @param height The height of the volume to be transformed.
+	 * @param depth The depth of the volume to be transformed.
+	 * @param spacing The distance in voxels between nodes of the field, 1 for a dense field.
+	 * @param path The absolute path of the field file, which is replaced once it is complete.
+	 * @return The composed DisplacementField3D, mapped from the file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	static public DisplacementField3D composeToFile(OrthogonalTransformSequence ots, int iterations, int width, int height, int depth, int spacing,
+							String path) throws IOException {
+
+		DisplacementField3D field = new DisplacementField3D(width, height, depth, spacing, iterations);
+		File file = new File(path);
+		File temp_file = new File(path + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp_file, "rw");
+		try {
+
+			raf.setLength(HEADER_BYTES + (field.getNodePlaneBytes() * field.node_count[2]));
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = field.getHeader();
+			while (header.hasRemaining()) channel.write(header, header.position());
+			field.composePlanes(ots, channel);
+
+		} finally {
+
+			raf.close();
+		}
+		if (file.exists() && !file.delete()) throw new IOException("Could not replace " + path);
+		if (!temp_file.renameTo(file)) throw new IOException("Could not rename " + temp_file.getPath() + " to " + file.getName());
+
+		return open(path);
+	}
+
+	private void composePlanes(OrthogonalTransformSequence ots, final FileChannel channel) throws IOException {
+
+		/*
+		 *  Compose every plane of nodes, keeping each on the heap, or writing it to channel at its place in the field
+		 *  file if channel is not null.
+		 */
+
+		// Rescale the transforms if the sequence was computed at a different resolution
+		ots = ots.getScaled(new int[] {width, height, depth});
+
+		// List the transforms in the order in which they are applied: YZ, ZX then XY in each iteration
+		OrthogonalTransformSequence.OrthogonalPlane[] planes = OrthogonalTransformSequence.OrthogonalPlane.values();
+		final OrthogonalTransform[] transforms = new OrthogonalTransform[iterations * planes.length];
+		final int[] axes = new int[transforms.length];	// Axis of the volume that forms the x axis of each plane
+		for (int i = 0; i < iterations; i++) {
+			for (int p = 0; p < planes.length; p++) {
+
+				transforms[(i * planes.length) + p] = ots.getOrthogonalTransform(planes[p], i);
+				axes[(i * planes.length) + p] = getPlaneAxis(planes[p]);
+			}
+		}
+
+		// Share bands of node planes between the workers of the WorkerPool; each band needs its own interpolators
+		final int band_count = DeformationField.getThreadCount(node_count[2]);
+		final AtomicInteger planes_done = new AtomicInteger(0);
+		final IOException[] failure = new IOException[1];
+		WorkerPool.forEach(band_count, new WorkerPool.IndexedTask() {
+
+			public void run(int band) {
+
+				BSplineModel[] swx = new BSplineModel[transforms.length];
+				BSplineModel[] swy = new BSplineModel[transforms.length];
+				for (int t = 0; t < transforms.length; t++) {
+
+					swx[t] = new BSplineModel(transforms[t].getCoefficientsX());
+					swy[t] = new BSplineModel(transforms[t].getCoefficientsY());
+				}
+				ByteBuffer bytes = (channel == null) ? null : ByteBuffer.allocate((int)getNodePlaneBytes()).order(ByteOrder.LITTLE_ENDIAN);
+				int last_plane = (int)(((long)(band + 1) * node_count[2]) / band_count);
+				for (int k = (int)(((long)band * node_count[2]) / band_count); k < last_plane; k++) {
+
+					float[] plane = composePlane(transforms, axes, swx, swy, k);
+					if (channel == null) {
+
+						displacement[k] = FloatBuffer.wrap(plane);
+
+					} else {
+
+						// Write the plane in its place, then let it go
+						bytes.clear();
+						bytes.asFloatBuffer().put(plane);
+						long position = HEADER_BYTES + (getNodePlaneBytes() * k);
+						try {
+
+							while (bytes.hasRemaining()) position += channel.write(bytes, position);
+
+						} catch (IOException e) {
+
+							synchronized (failure) { failure[0] = e; }
+							return;
+						}
+					}
+					IJ.showProgress(planes_done.incrementAndGet(), node_count[2]);
+				}
+			}
+		});
+		if (failure[0] != null) throw failure[0];
+	}
+
+	static private int getPlaneAxis(OrthogonalTransformSequence.OrthogonalPlane plane) {
+
+		// Resliced planes map the volume axes y,z (YZ), z,x (ZX) or x,y (XY) onto the plane's x,y axes
+		switch (plane) {
+			case YZ: return 1;
+			case ZX: return 2;
+			default: return 0;
+		}
+	}
+
+	private float[] composePlane(OrthogonalTransform[] transforms, int[] axes, BSplineModel[] swx, BSplineModel[] swy, int k) {
+
+		int[] dimensions = {width, height, depth};
+		float[] plane = new float[node_count[0] * node_count[1] * 3];
+		double[] point = new double[3];
+		for (int j = 0; j < node_count[1]; j++) {
+			for (int i = 0; i < node_count[0]; i++) {
+
+				double x = getNodePosition(i, width);
+				double y = getNodePosition(j, height);
+				double z = getNodePosition(k, depth);
+				point[0] = x;
+				point[1] = y;
+				point[2] = z;
+
+				// Trace the output voxel back through the transforms, last first
+				boolean inside = true;
+				for (int t = transforms.length - 1; t >= 0 && inside; t--) {
+
+					int a = axes[t];
+					int b = (a + 1) % 3;
+					int plane_width = dimensions[a];
+					int plane_height = dimensions[b];
+					int intervals = transforms[t].getIntervals();
+					double tu = (point[a] * intervals) / (double)(plane_width - 1) + 1.0;
+					double tv = (point[b] * intervals) / (double)(plane_height - 1) + 1.0;
+					double u = swx[t].prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+					double v = swy[t].prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+					inside = (u >= 0 && u < plane_width && v >= 0 && v < plane_height);
+					point[a] = u;
+					point[b] = v;
+				}
+
+				int offset = ((j * node_count[0]) + i) * 3;
+				plane[offset]     = inside ? (float)(point[0] - x) : Float.NaN;
+				plane[offset + 1] = inside ? (float)(point[1] - y) : Float.NaN;
+				plane[offset + 2] = inside ? (float)(point[2] - z) : Float.NaN;
+			}
+		}
+		return plane;
+	}
+
+	static private int getNodeCount(int size, int spacing) {
+
+		return ((size - 1 + spacing - 1) / spacing) + 1;
+	}
+
+	private double getNodePosition(int node, int size) {
+
+		// The last node always lies on the last voxel
+		return Math.min(node * spacing, size - 1);
+	}
+
+	/**
+	 * Resamples a volume through the field in a single pass.
+	 *
+	 * @param source The image to be transformed, which must have the dimensions of the field.
+	 * @param labels If true, values are copied from the nearest voxel rather than interpolated trilinearly.
+	 * @return A new ImagePlus of the same type and calibration as the source.
+	 */
+	public ImagePlus applyTo(ImagePlus source, final boolean labels) {
+
+		if (source.getWidth() != width || source.getHeight() != height || source.getStackSize() != depth) {
+
+			throw new IllegalArgumentException("Image is " + source.getWidth() + "x" + source.getHeight() + "x" + source.getStackSize()
+							   + " but the displacement field is " + width + "x" + height + "x" + depth);
+		}
+
+		// Grab the pixel arrays once, rather than once per voxel
+		ImageStack source_stack = source.getStack();
+		final Object[] input = new Object[depth];
+		ImageStack output_stack = new ImageStack(width, height);
+		final Object[] output = new Object[depth];
+		for (int z = 0; z < depth; z++) {
+
+			input[z] = source_stack.getPixels(z+1);
+			output[z] = StackReslicer.createPixels(input[z], width * height);
+			output_stack.addSlice(source_stack.getSliceLabel(z+1), output[z]);
+		}
+
+		// Share output slices between tasks
+		final AtomicInteger slices_done = new AtomicInteger(0);
+		WorkerPool.forEach(depth, new WorkerPool.IndexedTask() {
+
+			public void run(int z) {
+
+				resampleSlice(input, output[z], z, labels);
+				IJ.showProgress(slices_done.incrementAndGet(), depth);
+			}
+		});
+
+		ImagePlus output_image = new ImagePlus(source.getTitle(), output_stack);
+		output_image.setCalibration(source.getCalibration().copy());
+
+		return output_image;
+	}
+
+	/**
+	 * Gets the range of source slices sampled when resampling a range of output slices, including the
+	 * neighbouring slice needed for interpolation.
+	 *
+	 * @param first_slice The first output slice, counting from 0.
+	 * @param last_slice The last output slice, counting from 0.
+	 * @return The first and last source slices, counting from 0, or null if every voxel maps outside the volume.
+	 */
+	int[] getSourceRange(int first_slice, int last_slice) {
+
+		// The interpolated displacement of a voxel lies within that of the nodes around it
+		int first_node = Math.min(first_slice / spacing, node_count[2] - 1);
+		int last_node = Math.min((last_slice / spacing) + 1, node_count[2] - 1);
+		double min_z = Double.POSITIVE_INFINITY;
+		double max_z = Double.NEGATIVE_INFINITY;
+		for (int k = first_node; k <= last_node; k++) {
+
+			FloatBuffer plane = displacement[k];
+			for (int n = 2; n < plane.limit(); n = n + 3) {
+
+				float dz = plane.get(n);
+				if (Float.isNaN(dz)) continue;
+				if (dz < min_z) min_z = dz;
+				if (dz > max_z) max_z = dz;
+			}
+		}
+		if (min_z > max_z) return null;
+
+		int first = Math.max((int)Math.floor(first_slice + min_z), 0);
+		int last = Math.min((int)Math.ceil(last_slice + max_z) + 1, depth - 1);
+		if (first > last) return null;
+
+		return new int[] {first, last};
+	}
+
+	/**
+	 * Resamples a single output slice.
+	 *
+	 * @param input The source pixel arrays, one per slice. Only the slices given by getSourceRange are needed.
+	 * @param output The pixel array of the output slice, of the same type as the source.
+	 * @param z The output slice, counting from 0.
+	 * @param labels If true, values are copied from the nearest voxel rather than interpolated trilinearly.
+	 */
+	void resampleSlice(Object[] input, Object output, int z, boolean labels) {
+
+		double[] d = new double[3];
+		int channels = (output instanceof int[]) ? 3 : 1;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+
+				// Interpolate the displacement at this voxel
+				getDisplacement(x, y, z, d);
+				double sx = x + d[0];
+				double sy = y + d[1];
+				double sz = z + d[2];
+				if (!(sx >= 0 && sx < width && sy >= 0 && sy < height && sz >= 0 && sz < depth)) continue;	// NaN fails too
+
+				int index = (y * width) + x;
+				if (labels) {
+
+					int nx = Math.min((int)(sx + 0.5), width - 1);
+					int ny = Math.min((int)(sy + 0.5), height - 1);
+					int nz = Math.min((int)(sz + 0.5), depth - 1);
+					copyVoxel(input[nz], (ny * width) + nx, output, index);
+					continue;
+				}
+
+				int x0 = (int)sx, y0 = (int)sy, z0 = (int)sz;
+				int x1 = Math.min(x0 + 1, width - 1);
+				int y1 = Math.min(y0 + 1, height - 1);
+				int z1 = Math.min(z0 + 1, depth - 1);
+				double fx = sx - x0, fy = sy - y0, fz = sz - z0;
+				int value = 0;
+				for (int channel = 0; channel < channels; channel++) {
+
+					double v00 = lerp(getValue(input[z0], (y0 * width) + x0, channel), getValue(input[z0], (y0 * width) + x1, channel), fx);
+					double v10 = lerp(getValue(input[z0], (y1 * width) + x0, channel), getValue(input[z0], (y1 * width) + x1, channel), fx);
+					double v01 = lerp(getValue(input[z1], (y0 * width) + x0, channel), getValue(input[z1], (y0 * width) + x1, channel), fx);
+					double v11 = lerp(getValue(input[z1], (y1 * width) + x0, channel), getValue(input[z1], (y1 * width) + x1, channel), fx);
+					double v = lerp(lerp(v00, v10, fy), lerp(v01, v11, fy), fz);
+					if (output instanceof byte[]) {
+
+						((byte[])output)[index] = (byte)clamp(v, 255);
+
+					} else if (output instanceof short[]) {
+
+						((short[])output)[index] = (short)clamp(v, 65535);
+
+					} else if (output instanceof float[]) {
+
+						((float[])output)[index] = (float)v;
+
+					} else {
+
+						value = value | (clamp(v, 255) << (16 - (8 * channel)));
+					}
+				}
+				if (output instanceof int[]) ((int[])output)[index] = value;
+			}
+		}
+	}
+
+	private void getDisplacement(int x, int y, int z, double[] d) {
+
+		// Locate the cell of nodes containing the voxel
+		int i = Math.min(x / spacing, Math.max(node_count[0] - 2, 0));
+		int j = Math.min(y / spacing, Math.max(node_count[1] - 2, 0));
+		int k = Math.min(z / spacing, Math.max(node_count[2] - 2, 0));
+		int i1 = Math.min(i + 1, node_count[0] - 1);
+		int j1 = Math.min(j + 1, node_count[1] - 1);
+		int k1 = Math.min(k + 1, node_count[2] - 1);
+		double fx = getWeight(x, i, i1, width);
+		double fy = getWeight(y, j, j1, height);
+		double fz = getWeight(z, k, k1, depth);
+
+		FloatBuffer front = displacement[k];
+		FloatBuffer back = displacement[k1];
+		for (int axis = 0; axis < 3; axis++) {
+
+			double d00 = lerp(front.get((((j  * node_count[0]) + i) * 3) + axis), front.get((((j  * node_count[0]) + i1) * 3) + axis), fx);
+			double d10 = lerp(front.get((((j1 * node_count[0]) + i) * 3) + axis), front.get((((j1 * node_count[0]) + i1) * 3) + axis), fx);
+			double d01 = lerp(back.get((((j  * node_count[0]) + i) * 3) + axis),  back.get((((j  * node_count[0]) + i1) * 3) + axis),  fx);
+			double d11 = lerp(back.get((((j1 * node_count[0]) + i) * 3) + axis),  back.get((((j1 * node_count[0]) + i1) * 3) + axis),  fx);
+			d[axis] = lerp(lerp(d00, d10, fy), lerp(d01, d11, fy), fz);
+		}
+	}
+
+	private double getWeight(int position, int node, int next_node, int size) {
+
+		if (next_node == node) return 0.0;
+		double start = getNodePosition(node, size);
+
+		return (position - start) / (getNodePosition(next_node, size) - start);
+	}
+
+	static private double lerp(double a, double b, double f) {
+
+		// Avoid spreading NaN from a node that is not used
+		if (f == 0.0) return a;
+		if (f == 1.0) return b;
+
+		return a + ((b - a) * f);
+	}
+
+	static private int clamp(double value, int max) {
+
+		int rounded = (int)Math.round(value);
+		if (rounded < 0) return 0;
+
+		return (rounded > max) ? max : rounded;
+	}
+
+	static private double getValue(Object pixels, int index, int channel) {
+
+		if (pixels instanceof byte[]) {
+
+			return ((byte[])pixels)[index] & 0xff;
+
+		} else if (pixels instanceof short[]) {
+
+			return ((short[])pixels)[index] & 0xffff;
+
+		} else if (pixels instanceof float[]) {
+
+			return ((float[])pixels)[index];
+		}
+
+		return (((int[])pixels)[index] >> (16 - (8 * channel))) & 0xff;
+	}
+
+	static private void copyVoxel(Object input, int input_index, Object output, int output_index) {
+
+		if (input instanceof byte[]) {
+
+			((byte[])output)[output_index] = ((byte[])input)[input_index];
+
+		} else if (input instanceof short[]) {
+
+			((short[])output)[output_index] = ((short[])input)[input_index];
+
+		} else if (input instanceof float[]) {
+
+			((float[])output)[output_index] = ((float[])input)[input_index];
+
+		} else {
+
+			((int[])output)[output_index] = ((int[])input)[input_index];
+		}
+	}
+
+	public int getWidth() {
+
+		return width;
+	}
+
+	public int getHeight() {
+
+		return height;
+	}
+
+	public int getDepth() {
+
+		return depth;
+	}
+
+	public int getSpacing() {
+
+		return spacing;
+	}
+
+	public int getIterations() {
+
+		return iterations;
+	}
+
+	/**
+	 * @return The number of bytes in one plane of nodes, i.e. the field memory needed per plane of nodes a slab of slices reads.
+	 */
+	public long getNodePlaneBytes() {
+
+		return (long)node_count[0] * node_count[1] * 3 * 4;
+	}
+
+	/**
+	 * @param slab_length The number of consecutive output slices.
+	 * @return The most planes of nodes that resampling slab_length consecutive slices reads.
+	 */
+	public int getNodePlanes(int slab_length) {
+
+		return Math.min(((slab_length + spacing - 2) / spacing) + 2, node_count[2]);
+	}
+
+	/**
+	 * Gets the path of the cached field for a given ".ots" file, number of iterations and node spacing.
+	 *
+	 * @param ots_path The absolute path of the ".ots" file.
+	 * @param iterations The number of iterations composed into the field.
+	 * @param spacing The distance in voxels between nodes of the field.
+	 * @return The absolute path of the field file, next to the ".ots" file.
+	 */
+	static public String getCachePath(String ots_path, int iterations, int spacing) {
+
+		return ots_path + "." + iterations + "i" + spacing + "s.field";
+	}
+
+	/**
+	 * Gets the field for a sequence from the cache next to its ".ots" file if it is up to date, otherwise composes it.
+	 *
+	 * @param ots The orthogonal transform sequence.
+	 * @param ots_path The absolute path of the ".ots" file.
+	 * @param iterations The number of iterations to compose.
+	 * @param width The width of the volume to be transformed.
+	 * @param height The height of the volume to be transformed.
+	 * @param depth The depth of the volume to be transformed.
+	 * @param spacing The distance in voxels between nodes of the field.
+	 * @param cache If true, a cached field is used when possible and a newly composed field is saved to the cache.
+	 * @return The DisplacementField3D.
+	 */
+	static public DisplacementField3D openOrCompose(OrthogonalTransformSequence ots, String ots_path, int iterations, int width, int height, int depth, int spacing, boolean cache) {
+
+		DisplacementField3D field = openOrComposeCached(ots, ots_path, iterations, width, height, depth, spacing, cache);
+		if (field != null) return field;
+
+		return compose(ots, iterations, width, height, depth, spacing);
+	}
+
+	/**
+	 * As openOrCompose, but a field that is not cached is composed into a temporary file rather than on the heap,
+	 * so that the field of a volume streamed slab by slab never needs to fit in memory.
+	 *
+	 * @param ots The orthogonal transform sequence.
+	 * @param ots_path The absolute path of the ".ots" file.
+	 * @param iterations The number of iterations to compose.
+	 * @param width The width of the volume to be transformed.
+	 * @param height The height of the volume to be transformed.
+	 * @param depth The depth of the volume to be transformed.
+	 * @param spacing The distance in voxels between nodes of the field.
+	 * @param cache If true, a cached field is used when possible and a newly composed field is saved to the cache.
+	 * @return The DisplacementField3D, mapped from a file unless no file could be written.
+	 */
+	static public DisplacementField3D openOrComposeMapped(OrthogonalTransformSequence ots, String ots_path, int iterations, int width, int height, int depth, int spacing, boolean cache) {
+
+		DisplacementField3D field = openOrComposeCached(ots, ots_path, iterations, width, height, depth, spacing, cache);
+		if (field != null) return field;
+		try {
+
+			File temp_file = File.createTempFile("atlas_toolkit_field", ".field");
+			temp_file.deleteOnExit();
+			return composeToFile(ots, iterations, width, height, depth, spacing, temp_file.getPath());
+
+		} catch(IOException i) {
+
+			IJ.log("Could not write a temporary displacement field, so it will be held in memory: " + i.getMessage());
+		}
+
+		return compose(ots, iterations, width, height, depth, spacing);
+	}
+
+	static private DisplacementField3D openOrComposeCached(OrthogonalTransformSequence ots, String ots_path, int iterations, int width, int height, int depth, int spacing, boolean cache) {
+
+		/*
+		 *  Returns the cached field if it is up to date, otherwise composes it straight into the cache, so that the field
+		 *  is mapped from it rather than held on the heap. Returns null if the cache is not used or cannot be written.
+		 */
+
+		String cache_path = getCachePath(ots_path, iterations, spacing);
+		if (cache) {
+
+			DisplacementField3D field = openCached(cache_path, ots_path, width, height, depth);
+			if (field != null) {
+
+				IJ.log("Using cached displacement field " + cache_path);
+				return field;
+			}
+		}
+
+		IJ.showStatus("Composing displacement field...");
+		IJ.log("Composing " + iterations + " iterations into a displacement field with spacing " + spacing);
+		if (cache) {
+
+			try {
+
+				return composeToFile(ots, iterations, width, height, depth, spacing, cache_path);
+
+			} catch(IOException i) {
+
+				IJ.log("Could not cache displacement field " + cache_path + ": " + i.getMessage());
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Opens a field from a cache file, unless the cache is missing, stale or does not match.
+	 *
+	 * @param path The absolute path of the field file.
+	 * @param ots_path The absolute path of the ".ots" file it was composed from. The cache is ignored if that file is newer.
+	 * @param width The expected width of the field.
+	 * @param height The expected height of the field.
+	 * @param depth The expected depth of the field.
+	 * @return The DisplacementField3D, or null if the cache cannot be used.
+	 */
+	static public DisplacementField3D openCached(String path, String ots_path, int width, int height, int depth) {
+
+		File file = new File(path);
+		if (!file.isFile() || file.lastModified() < new File(ots_path).lastModified()) return null;
+
+		try {
+
+			DisplacementField3D field = open(path);
+			if (field.width == width && field.height == height && field.depth == depth) return field;
+
+		} catch(IOException i) {
+
+			IJ.log("Could not read cached displacement field " + path + ": " + i.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Opens a field previously saved with saveToFile.
+	 *
+	 * @param path The absolute path of the field file.
+	 * @return The DisplacementField3D.
+	 * @throws IOException If the file cannot be read or is not a displacement field.
+	 */
+	static public DisplacementField3D open(String path) throws IOException {
+
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+
+			// Read the header
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != FIELD_MAGIC) throw new IOException(path + " is not a displacement field");
+			int version = header.getInt();
+			if (version != FIELD_VERSION) throw new IOException("Unsupported displacement field version: " + version);
+			DisplacementField3D field = new DisplacementField3D(header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt());
+
+			// Map one plane of nodes at a time, so that large fields need not be mapped in one piece, and leave them in the
+			// file, so that only the planes in use are paged in rather than the whole field being read onto the heap
+			long plane_bytes = field.getNodePlaneBytes();
+			if (plane_bytes > Integer.MAX_VALUE) throw new IOException(path + " has planes of nodes too large to map");
+			if (channel.size() != HEADER_BYTES + (plane_bytes * field.node_count[2])) throw new IOException(path + " is truncated");
+			for (int k = 0; k < field.node_count[2]; k++) {
+
+				field.displacement[k] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (plane_bytes * k), plane_bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+
+			return field;
+
+		} finally {
+
+			file.close();
+		}
+	}
+
+	/**
+	 * Saves the field to a little-endian binary file: a header holding the magic number "DF3B", the format
+	 * version, the width, height and depth of the volume, the node spacing and the number of iterations,
+	 * followed by the x, y and z displacement of each node, in x, y then z node order.
+	 *
+	 * @param path The absolute path of the field file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void saveToFile(String path) throws IOException {
+
+		FileOutputStream fileOut = new FileOutputStream(path);
+		try {
+
+			FileChannel channel = fileOut.getChannel();
+			write(channel, getHeader());
+			ByteBuffer plane = ByteBuffer.allocate((int)getNodePlaneBytes()).order(ByteOrder.LITTLE_ENDIAN);
+			for (int k = 0; k < node_count[2]; k++) {
+
+				plane.clear();
+				FloatBuffer nodes = displacement[k].duplicate();
+				nodes.rewind();
+				plane.asFloatBuffer().put(nodes);
+				write(channel, plane);
+			}
+
+		} finally {
+
+			fileOut.close();
+		}
+	}
+
+	private ByteBuffer getHeader() {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(FIELD_MAGIC).putInt(FIELD_VERSION).putInt(width).putInt(height).putInt(depth).putInt(spacing).putInt(iterations);
+		header.flip();
+
+		return header;
+	}
+
+	static private void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+
+			channel.write(buffer);
+		}
+	}
+}
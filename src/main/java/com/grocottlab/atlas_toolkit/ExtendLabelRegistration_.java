@@ -0,0 +1,347 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.OpenDialog;
+import ij.io.Opener;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * A class for adding a new specimen to a group that has already been registered by Label Registration 3D.
+ *
+ * Only the new specimen is registered, plane by plane and iteration by iteration as in the original run,
+ * either to the consensus of the group or to each of its registered members, averaging over the members.
+ * The group is not registered again, so adding a specimen costs one registration per plane, or one per
+ * member, rather than a pairwise run over the whole enlarged group. The new specimen's ".ots" file and
+ * registered label are saved alongside those of the group, and the vote count is extended by the new
+ * specimen alone before the consensus and probability map are rebuilt from it. If the group's labels were
+ * down-sampled, the new specimen's are down-sampled by the same factor, which is found by comparing its
+ * dimensions with those recorded in a member's ".ots" file.
+ *
+ * A group registered jointly on several labels carries each at its own grey level, so the new specimen must
+ * be isolated on the same labels, in the same order. The grey levels of a registered member are compared with
+ * those of the chosen labels, and the group is not extended if they differ. The consensus holds only the
+ * union of the labels, so against the consensus the new specimen is registered by the union of its labels,
+ * which then follow it through the same transforms.
+ *
+ * This class is called by the Atlas Toolkit menu command "3b. Extend Label Registration 3D".
+ *
+ */
+public class ExtendLabelRegistration_ implements PlugIn {
+
+	@Override
+	public void run(String arg) {
+
+		// Get the new specimen
+		OpenDialog od = new OpenDialog("Select new volume... - ATLAS toolkit", "");
+		if (od.getFileName() == null) return;
+		String input_filepath = od.getDirectory() + od.getFileName();
+		String input_filename = od.getFileName();
+
+		// Get the folder of the registered group, i.e. where Label Registration 3D saved its transforms and labels
+		DirectoryChooser dc = new DirectoryChooser("Select folder of registered group... - ATLAS toolkit");
+		if (dc.getDirectory() == null) return;
+		String directory = dc.getDirectory();
+		String[] member_filename = getMembers(directory);
+		if (member_filename.length == 0) {
+
+			IJ.error("Extend Label Registration 3D", "There are no orthogonal transform sequences (.ots) in " + directory);
+			return;
+		}
+		if (new File(directory, input_filename + ".ots").exists()) {
+
+			IJ.error("Extend Label Registration 3D", input_filename + " is already a member of the group in " + directory);
+			return;
+		}
+
+		// Open the new specimen, so that it can be compared with the group
+		Opener op = new Opener();
+		ImagePlus source_image = op.openImage(input_filepath);
+		if (source_image == null) {
+
+			IJ.error("Extend Label Registration 3D", "Could not open " + input_filepath);
+			return;
+		}
+		source_image.setTitle(input_filename);
+
+		// Register for as many iterations as the group, by default, and at the resolution the group was registered at
+		OrthogonalTransformSequence member_ots = OrthogonalTransformSequence.openOTS(new File(directory, member_filename[0] + ".ots").getPath());
+		int downsample_factor = getDownsampleFactor(source_image, member_ots);
+		GenericDialog gd = new GenericDialog("Extend Label Registration 3D - ATLAS toolkit");
+		int label_choice = 1;
+		gd.addNumericField("Select Channel (0-255):", label_choice, 0);
+		gd.addStringField("Also register on channels (e.g. 3, 5): ", "");
+		int iteration_count = (member_ots != null) ? member_ots.getIterations() : 1;
+		gd.addNumericField("Number of iterations: ", iteration_count, 0);
+		String[] choice_of_references = { "Consensus", "Each registered member" };
+		gd.addChoice("Register against: ", choice_of_references, "Consensus");
+		if (downsample_factor == 0) gd.addNumericField("Downsample labels by: ", 1, 0);	// Only if the group did not record it
+		int consensus_votes = 0;
+		gd.addNumericField("Consensus of at least k images (0 = all): ", consensus_votes, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		label_choice = (int)gd.getNextNumber();
+		int[] labels = LabelRegistration3D_.getLabels(label_choice, gd.getNextString());
+		iteration_count = Math.max((int)gd.getNextNumber(), 1);
+		boolean each_member = (gd.getNextChoiceIndex() == 1);
+		if (downsample_factor == 0) downsample_factor = Math.max((int)gd.getNextNumber(), 1);
+		consensus_votes = Math.max((int)gd.getNextNumber(), 0);
+		if (labels.length > LabelRegistration3D_.MAX_LABELS) {
+
+			IJ.error("Extend Label Registration 3D", "At most " + LabelRegistration3D_.MAX_LABELS + " channels can be registered jointly, but " + labels.length + " were chosen");
+			return;
+		}
+
+		// Check that the group was registered on as many labels, which give its members the same grey levels
+		int[] levels = LabelRegistration3D_.getLabelLevels(labels.length);
+		int member_count = member_filename.length;
+		ImagePlus[] member_images = null;
+		if (each_member) {
+
+			member_images = openMembers(directory, member_filename);
+			if (member_images == null) return;
+		}
+		ImagePlus[] first_member = (member_images != null) ? member_images : openMembers(directory, new String[] {member_filename[0]});
+		if (first_member == null) return;
+		int[] member_levels = getLevels(first_member[0]);
+		int[] chosen_levels = getSortedLevels(levels);
+		first_member = null;
+		if (!Arrays.equals(member_levels, chosen_levels)) {
+
+			IJ.error("Extend Label Registration 3D", member_filename[0] + " carries grey levels " + Arrays.toString(member_levels) + ", but the "
+				 + labels.length + " channels chosen would carry " + Arrays.toString(chosen_levels)
+				 + ". Choose the channels the group was registered on, in the same order.");
+			return;
+		}
+
+		// Isolate the chosen labels of the new specimen, at the resolution the group was registered at
+		IJ.log("Analyzing labels...");
+		if (labels.length > 1) IJ.log("Registering jointly on channels " + Arrays.toString(labels) + " at grey levels " + Arrays.toString(levels));
+		if (downsample_factor > 1) IJ.log("Downsampling labels by " + downsample_factor + ", as the group was");
+		LabelRegistration3D_.isolateLabels(source_image, labels, levels);
+		if (downsample_factor > 1) source_image = LabelRegistration3D_.downsample(source_image, downsample_factor, levels);
+		int[] source_dimensions = {source_image.getWidth(), source_image.getHeight(), source_image.getStackSize()};
+		IJ.log("...done!");
+
+		// Open the references: the group's registered labels, or its consensus
+		ImagePlus[] references;
+		if (each_member) {
+
+			references = member_images;
+
+		} else {
+
+			ImagePlus consensus = op.openImage(new File(directory, "consensus.tif").getPath());
+			if (consensus == null) {
+
+				IJ.log("No consensus.tif in " + directory + ", so it will be rebuilt from the registered labels");
+				member_images = openMembers(directory, member_filename);
+				if (member_images == null) return;
+				consensus = LabelRegistration3D_.getConsensus(LabelRegistration3D_.getVoteCount(member_images), member_count);
+			}
+			references = new ImagePlus[] {consensus};
+		}
+		IJ.log("Registering " + input_filename + " to " + (each_member ? member_count + " registered members" : "the consensus of " + member_count + " images"));
+
+		// Get start_time
+		final long start_time = new Date().getTime();
+
+		// Register the new specimen in each plane of each iteration, turning the references with it so that both are
+		// projected in the same plane. Three planes bring both back to their original orientation.
+		OrthogonalTransform[][] ot = new OrthogonalTransform[iteration_count][3];
+		ImagePlus registered_image = source_image;
+		source_image = null;
+
+		// Against the binary consensus, register the union of several labels instead
+		ImagePlus registered_union = (!each_member && labels.length > 1) ? LabelRegistration3D_.getMask(registered_image, levels) : null;
+		int rotations = 0;
+		for (int iteration = 0; iteration < iteration_count; iteration++) {
+
+			for (OrthogonalTransformSequence.OrthogonalPlane orthoplane : OrthogonalTransformSequence.OrthogonalPlane.values()) {
+
+				IJ.showStatus("Iteration " + (iteration+1) + " of " + iteration_count + "; Plane " + orthoplane);
+				IJ.log("\n-----\nOrthogonal Plane " + orthoplane + "\n-----\n");
+				rotations = (rotations + 1) % 3;
+				StackRegister sr = new StackRegister(new ImagePlus[] {(registered_union != null) ? registered_union : registered_image}, 1, null);
+				sr.setReferences(references, rotations);
+				sr.setLabels(true);
+				ImagePlus transformed_image = sr.getTransformedImages()[0];
+				OrthogonalTransform plane_ot = sr.getOrthogonalTransforms()[0];
+				ot[iteration][RegistrationCheckpoint.getPlaneIndex(orthoplane)] = plane_ot;
+				if (registered_union != null) {
+
+					// The labels follow the union through the same transform
+					registered_union = transformed_image;
+					StackRegister label_sr = new StackRegister(new ImagePlus[] {registered_image}, 1, null);
+					label_sr.setLabels(true);
+					transformed_image = label_sr.getTransformedImages(new OrthogonalTransform[] {plane_ot})[0];
+				}
+				registered_image = transformed_image;
+			}
+		}
+
+		// Get end_time
+		final long end_time = new Date().getTime();
+		int min_elapsed = (int)(((end_time - start_time) / 1000) / 60);
+		IJ.log("Registered " + input_filename + " in " + min_elapsed + " minutes!");
+
+		// Save the new specimen's transforms and registered label alongside those of the group
+		new OrthogonalTransformSequence(ot, source_dimensions).saveToFile(directory + "/" + input_filename + ".ots");
+		registered_image.setTitle(input_filename);
+		IJ.save(registered_image, directory + "/" + input_filename);
+		registered_image.show();
+
+		// Add the new specimen's votes to those of the group, counting the group again only if its votes were not saved
+		int image_count = member_count + 1;
+		ImagePlus votes = op.openImage(new File(directory, "votes.tif").getPath());
+		if (votes != null && (votes.getBitDepth() == 8 || votes.getBitDepth() == 16)) {
+
+			// Widen an 8-bit count once the group outgrows it
+			if (image_count > 255) votes = LabelRegistration3D_.getShortVotes(votes);
+			LabelRegistration3D_.addVotes(votes, new ImagePlus[] {registered_image});
+
+		} else {
+
+			IJ.log("No votes.tif in " + directory + ", so the votes of the group will be counted again");
+			if (member_images == null) member_images = openMembers(directory, member_filename);
+			if (member_images == null) return;
+			ImagePlus[] group_images = Arrays.copyOf(member_images, image_count);
+			group_images[member_count] = registered_image;
+			votes = LabelRegistration3D_.getVoteCount(group_images);
+		}
+		int min_votes = (consensus_votes == 0) ? image_count : Math.min(consensus_votes, image_count);
+		ImagePlus consensus = LabelRegistration3D_.getConsensus(votes, min_votes);
+		ImagePlus probability = LabelRegistration3D_.getProbabilityMap(votes, image_count);
+		IJ.log("Consensus of at least " + min_votes + " of " + image_count + " images");
+
+		consensus.setTitle("consensus");
+		consensus.show();
+		IJ.save(consensus, directory + "/consensus.tif");
+		votes.setTitle("votes");
+		votes.show();
+		IJ.save(votes, directory + "/votes.tif");
+		probability.setTitle("probability");
+		probability.show();
+		IJ.save(probability, directory + "/probability.tif");
+	}
+
+	static private int getDownsampleFactor(ImagePlus source_image, OrthogonalTransformSequence member_ots) {
+
+		/*
+		 * The factor by which the group's labels were down-sampled, from the dimensions a member's transforms were
+		 * registered at against the new specimen's. Specimens differ in size a little, so the ratio is rounded. Returns 0
+		 * if the member did not record its dimensions.
+		 */
+
+		if (member_ots == null) return 0;
+		int[] member_dimensions = member_ots.getDimensions();
+		if (member_dimensions == null || member_dimensions[0] < 2 || member_dimensions[1] < 2) return 0;
+		double ratio = (((double)source_image.getWidth() / member_dimensions[0]) + ((double)source_image.getHeight() / member_dimensions[1])) / 2;
+
+		return Math.max((int)Math.round(ratio), 1);
+	}
+
+	static private int[] getLevels(ImagePlus label_image) {
+
+		// The distinct non-zero grey levels of an 8-bit label image, in ascending order
+		boolean[] present = new boolean[256];
+		ImageStack stack = label_image.getStack();
+		for (int slice = 1; slice <= stack.getSize(); slice++) {
+
+			ImageProcessor ip = stack.getProcessor(slice);
+			for (int i = 0; i < ip.getPixelCount(); i++) present[ip.get(i) & 0xff] = true;
+		}
+		present[0] = false;
+		int level_count = 0;
+		int[] levels = new int[256];
+		for (int value = 0; value < 256; value++) {
+
+			if (present[value]) levels[level_count++] = value;
+		}
+
+		return Arrays.copyOf(levels, level_count);
+	}
+
+	static private int[] getSortedLevels(int[] levels) {
+
+		// The same levels in ascending order
+		int[] sorted_levels = levels.clone();
+		Arrays.sort(sorted_levels);
+
+		return sorted_levels;
+	}
+
+	static private String[] getMembers(String directory) {
+
+		// The members of a group are the images with an ".ots" file of the same name
+		String[] ots_filename = new File(directory).list(new FilenameFilter() {
+
+			public boolean accept(File dir, String name) {
+
+				return name.endsWith(".ots");
+			}
+		});
+		if (ots_filename == null) return new String[0];
+		Arrays.sort(ots_filename);
+		String[] member_filename = new String[ots_filename.length];
+		for (int i = 0; i < ots_filename.length; i++) {
+
+			member_filename[i] = ots_filename[i].substring(0, ots_filename[i].length() - ".ots".length());
+		}
+
+		return member_filename;
+	}
+
+	static private ImagePlus[] openMembers(String directory, String[] member_filename) {
+
+		// Open the registered label of every member, or return null if any is missing. A label saved compressed, or by
+		// ImageJ without an extension, has ".tif" added to the name of its ".ots" file.
+		ImagePlus[] member_images = new ImagePlus[member_filename.length];
+		Opener op = new Opener();
+		for (int i = 0; i < member_filename.length; i++) {
+
+			IJ.showStatus("Opening registered labels...");
+			IJ.showProgress(i, member_filename.length);
+			File file = new File(directory, member_filename[i]);
+			if (!file.exists()) file = new File(directory, member_filename[i] + ".tif");
+			member_images[i] = op.openImage(file.getPath());
+			if (member_images[i] == null) {
+
+				IJ.error("Extend Label Registration 3D", "Could not open the registered label " + member_filename[i] + " in " + directory);
+				return null;
+			}
+		}
+
+		return member_images;
+	}
+}
@@ -29,12 +29,18 @@ import ij.gui.GenericDialog;
 import ij.io.DirectoryChooser;
 import ij.io.OpenDialog;
 import ij.io.Opener;
-import ij.plugin.ImageCalculator;
 import ij.plugin.PlugIn;
 import ij.plugin.Resizer;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import ij.process.StackProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class for registering multiple 3D image stacks in group-wise fashion.
@@ -47,6 +53,8 @@ public class LabelRegistration3D_ implements PlugIn {
     int image_count;
     String[] input_filename;
     static ProgressWindow progressWindow;
+    VolumeStore volume_store = null;	// Holds the volumes off the heap, if requested
+    static final int MAX_LABELS = 128;	// The number of grey levels from 255 down to 128
  
 	@Override
 	public void run(String arg) {
@@ -82,63 +90,128 @@ public class LabelRegistration3D_ implements PlugIn {
 		GenericDialog gd = new GenericDialog("Label Registration 3D - ATLAS toolkit");
 		int label_choice = 1;
                 gd.addNumericField("Select Channel (0-255):", label_choice, 0);
+                gd.addStringField("Also register on channels (e.g. 3, 5): ", "");
                 int iteration_count = 1;
                 gd.addNumericField("Number of iterations: ", iteration_count, 0);
 		int first_plane = 2;
                 String[] choice_of_planes = { "XY", "YZ", "ZX" };
 		gd.addChoice("First Orthogonal Plane: ", choice_of_planes, "YZ");
+                String[] choice_of_modes = { "All pairs", "Symmetric pairs", "Template", "Nearest neighbours" };	// In the order of StackRegister.RegistrationMode
+                gd.addChoice("Group registration: ", choice_of_modes, "All pairs");
+                int template_rounds = 3;
+                gd.addNumericField("Template rounds: ", template_rounds, 0);
+                int neighbour_count = 5;
+                gd.addNumericField("Nearest neighbours (k): ", neighbour_count, 0);
+                int downsample_factor = 1;
+                gd.addNumericField("Downsample labels by: ", downsample_factor, 0);
+                int pyramid_levels = 1;
+                gd.addNumericField("Pyramid levels (coarse to fine): ", pyramid_levels, 0);
+                double stop_threshold = 0;
+                gd.addNumericField("Stop when Dice improves by less than (0 = never): ", stop_threshold, 4);
+                boolean save_checkpoints = false;
+                gd.addCheckbox("Save checkpoint after each plane", save_checkpoints);
+                boolean resume = false;
+                gd.addCheckbox("Resume from checkpoint", resume);
+                int consensus_votes = 0;
+                gd.addNumericField("Consensus of at least k images (0 = all): ", consensus_votes, 0);
+                boolean use_store = false;
+                gd.addCheckbox("Hold volumes in memory-mapped scratch files", use_store);
+                String[] choice_of_compression = { "None", "Deflate" };	// In the order of StackWriter.Compression
+                gd.addChoice("Compression of saved stacks: ", choice_of_compression, "None");
+                boolean display = true;
+                gd.addCheckbox("Display results", display);
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
                 label_choice = (int)gd.getNextNumber();
+                int[] labels = getLabels(label_choice, gd.getNextString());
+		if (labels.length > MAX_LABELS) {
+
+			IJ.error("Label Registration 3D", "At most " + MAX_LABELS + " channels can be registered jointly, but " + labels.length + " were chosen");
+			return;
+		}
 		iteration_count = (int)gd.getNextNumber();
 		String chosen_plane = gd.getNextChoice();
-
-		// Load the input images
-		ImagePlus[] source_images = new ImagePlus[image_count];
-		Opener op = new Opener();
-		for (int i = 0; i < image_count; i++) {
-
-			source_images[i] = op.openImage(input_filepath[i]);
-			source_images[i].setTitle("source_image #" + (i+1));
+                StackRegister.RegistrationMode registration_mode = StackRegister.RegistrationMode.values()[gd.getNextChoiceIndex()];
+                template_rounds = (int)gd.getNextNumber();
+                neighbour_count = (int)gd.getNextNumber();
+                downsample_factor = Math.max((int)gd.getNextNumber(), 1);
+                pyramid_levels = Math.max((int)gd.getNextNumber(), 1);
+                stop_threshold = gd.getNextNumber();
+                save_checkpoints = gd.getNextBoolean();
+                resume = gd.getNextBoolean();
+                consensus_votes = Math.max((int)gd.getNextNumber(), 0);
+                use_store = gd.getNextBoolean();
+                StackWriter.Compression compression = StackWriter.Compression.values()[gd.getNextChoiceIndex()];
+                display = gd.getNextBoolean();
+
+		// Choose the checkpoint folder before the long part of the run
+		RegistrationCheckpoint checkpoint = null;
+		if (save_checkpoints || resume) {
+
+			DirectoryChooser cdc = new DirectoryChooser("Select checkpoint folder... - ATLAS toolkit");
+			if (cdc.getDirectory() == null) return;
+			checkpoint = new RegistrationCheckpoint(cdc.getDirectory());
+			if (resume && !checkpoint.exists()) {
+
+				IJ.error("Label Registration 3D", "There is no checkpoint to resume in " + cdc.getDirectory());
+				return;
+			}
 		}
 
-		// Get dimensions of source images
+		// Register on several labels jointly by giving each its own grey level in a single label image, so that every
+		// reslice and guide projection carries all of them at once
+		int[] levels = getLabelLevels(labels.length);
+		if (labels.length > 1) IJ.log("Registering jointly on channels " + Arrays.toString(labels) + " at grey levels " + Arrays.toString(levels));
+
+		// Load the input images one at a time, isolating the chosen labels and packing them to a few bits per voxel, so that
+		// only one unpacked image is held while loading
+		BinaryVolume[] packed_images = new BinaryVolume[image_count];
 		int[][] source_dimensions = new int[image_count][3];
+		Opener op = new Opener();
+		IJ.log("Analyzing labels...");
+		if (downsample_factor > 1) IJ.log("Downsampling labels by " + downsample_factor + "...");
 		for (int image = 0; image < image_count; image++) {
-			for (int i = 0; i < 3; i++) {
 
-				source_dimensions[image][0] = source_images[image].getDimensions()[0];	// Store the x dimension
-				source_dimensions[image][1] = source_images[image].getDimensions()[1];	// Store the y dimension
-				source_dimensions[image][2] = source_images[image].getDimensions()[3];	// Store the z dimension
-			}
+			IJ.showStatus("Analyzing labels...");
+			IJ.showProgress(image, image_count);
+			ImagePlus source_image = op.openImage(input_filepath[image]);
+			source_image.setTitle("source_image #" + (image+1));
+
+			// Isolate the chosen labels (set label pixels to their grey level, all other pixels to zero)
+			isolateLabels(source_image, labels, levels);
+
+			// Register down-sampled labels if requested. The stored dimensions are those registered, so that the
+			// transforms can be rescaled to the full-resolution images when they are applied.
+			if (downsample_factor > 1) source_image = downsample(source_image, downsample_factor, levels);
+			source_dimensions[image][0] = source_image.getWidth();		// Store the x dimension
+			source_dimensions[image][1] = source_image.getHeight();		// Store the y dimension
+			source_dimensions[image][2] = source_image.getStackSize();	// Store the z dimension
+			packed_images[image] = new BinaryVolume(source_image, levels);
 		}
+		IJ.showStatus("Analyzing labels...done!");
+		IJ.log("...done!");
 
-		// Isolate the chosen labels (set label pixels to 255, all other pixels to zero
-		IJ.log("Analyzing labels...");
-		for (int image = 0; image < image_count; image++) {
+		// Keep the volumes in scratch files, so that the size of the group is not limited by the heap
+		if (use_store) {
 
-			for (int z = 0; z < source_dimensions[image][2]; z++) {
+			try {
 
-				float z_progress = z / source_dimensions[image][2];
-				//IJ.showStatus("z_progress = " + z_progress);
-				IJ.showStatus("Analyzing labels...");
-				IJ.showProgress( (int)(100.0 * (image + z_progress) ), image_count * 100);
-				source_images[image].setSlice(z+1);
-				for (int y = 0; y < source_dimensions[image][1]; y++) {
-					for (int x = 0; x < source_dimensions[image][0]; x++) {
+				volume_store = new VolumeStore();
+				IJ.log("Holding volumes in memory-mapped scratch files");
 
-						if (source_images[image].getProcessor().getPixel(x, y) == label_choice) {
+			} catch (IOException e) {
 
-							source_images[image].getProcessor().set(x, y, 255);
-						} else {
-							source_images[image].getProcessor().set(x, y, 0);
-						}
-					}
-				}
+				IJ.log("Could not create scratch files, so volumes will be held on the heap: " + e.getMessage());
 			}
 		}
-		IJ.showStatus("Analyzing labels...done!");
-		IJ.log("...done!");
+
+		// Unpack the labels for registration
+		ImagePlus[] source_images = new ImagePlus[image_count];
+		for (int image = 0; image < image_count; image++) {
+
+			source_images[image] = park(volume_store, image, packed_images[image].toImagePlus());
+			packed_images[image] = null;
+		}
 		
 		// Get start_time
 		final long start_time = new Date().getTime();
@@ -148,23 +221,7 @@ public class LabelRegistration3D_ implements PlugIn {
 
 		// Define arrays for holding resliced_images and registered_images
 		ImagePlus[] registered_images = new ImagePlus[image_count];
-		final ImagePlus[] resliced_images = new ImagePlus[image_count];
-
-		// Establish number of threads to use when reslicing images
-		final int thread_count;
-		final int max_cores = Runtime.getRuntime().availableProcessors();
-		if (image_count > max_cores) {
-
-			thread_count = (int)(max_cores); // * 0.75); // / 2;//- 1;
-			
-		} else {
-
-			thread_count = image_count;
-		}
 		IJ.log("image_count = " + image_count);
-		IJ.log("thread_count = " + thread_count);
-		//int images_done = 0;
-		final Thread[] threads = new Thread[thread_count];
 
 		// Advance to first plane
 		if (chosen_plane == "ZX" ) {
@@ -175,12 +232,87 @@ public class LabelRegistration3D_ implements PlugIn {
 			advance_plane(source_images, 2);
 		}
                 
+		// Keep the full-resolution labels, packed, if early iterations are to run on down-sampled copies
+		BinaryVolume[] base_images = null;
+		int level_factor = 1;
+		if (pyramid_levels > 1) {
+
+			base_images = new BinaryVolume[image_count];
+			for (int image = 0; image < image_count; image++) {
+
+				base_images[image] = new BinaryVolume(source_images[image], levels);
+			}
+		}
+
                 // Show the progress window
                 progressWindow = new ProgressWindow(image_count, iteration_count);
 
+		// Track the overlap of the group so that registration can stop once it no longer improves
+		double dice = -1;
+		double previous_dice = -1;
+		int previous_factor = -1;
+		int iterations_done = iteration_count;
+
+		// Pick up the transforms and registered labels of an interrupted run, then carry on from the next plane
+		int start_iteration = 0;
+		int start_planes = 0;	// Planes of start_iteration already registered
+		if (resume) {
+
+			try {
+
+				registered_images = checkpoint.load(ot, source_dimensions, pyramid_levels);
+				for (int image = 0; image < image_count; image++) {
+
+					registered_images[image] = park(volume_store, image, registered_images[image]);
+				}
+
+			} catch (IOException e) {
+
+				progressWindow.setVisible(false);
+				IJ.error("Label Registration 3D", "Could not resume from checkpoint: " + e.getMessage());
+				return;
+			}
+			Arrays.fill(source_images, null);
+			start_iteration = checkpoint.getIteration();
+			start_planes = checkpoint.getPlanesDone();
+			if (start_planes == 3) {
+
+				start_iteration++;
+				start_planes = 0;
+			}
+			dice = checkpoint.getDice();
+			previous_dice = checkpoint.getPreviousDice();
+			previous_factor = checkpoint.getPreviousFactor();
+			if (base_images != null) level_factor = getPyramidFactor((start_planes > 0) ? start_iteration : start_iteration - 1, iteration_count, pyramid_levels);
+		}
+
 		// Iterate through iterations
-		for (int iteration = 0; iteration < iteration_count; iteration++) {
+		for (int iteration = start_iteration; iteration < iteration_count; iteration++) {
 			
+			// An iteration resumed part way through carries on at the level, and from the Dice, of its checkpoint
+			boolean part_done = (iteration == start_iteration && start_planes > 0);
+
+			// Move to the next pyramid level, re-applying the transforms so far to the labels at the new resolution
+			if (base_images != null && !part_done && (iteration == 0 || getPyramidFactor(iteration, iteration_count, pyramid_levels) != level_factor)) {
+
+				level_factor = getPyramidFactor(iteration, iteration_count, pyramid_levels);
+				IJ.log("Registering at 1/" + level_factor + " resolution");
+				ImagePlus[] level_images = getLevelImages(base_images, ot, iteration, level_factor, volume_store);
+				if (iteration == 0) {
+					source_images = level_images;
+				} else {
+					registered_images = level_images;
+				}
+			}
+
+			// Measure the starting overlap, at the resolution of the current level
+			if (stop_threshold > 0 && !part_done && (iteration == 0 || level_factor != previous_factor)) {
+
+				previous_dice = getGroupDice((iteration == 0) ? source_images : registered_images);
+				previous_factor = level_factor;
+				IJ.log("Mean pairwise Dice before iteration " + (iteration+1) + ": " + IJ.d2s(previous_dice, 4));
+			}
+
 			// Iterate through orthognal planes
 			IJ.showStatus("Begin...");
                         int regPlane = 0;
@@ -188,83 +320,48 @@ public class LabelRegistration3D_ implements PlugIn {
 
 				// Update progress
                                 regPlane++;
+                                if (part_done && regPlane <= start_planes) continue;
                                 //progressWindow.setPlane(regPlane);
                                 //progressWindow.setIteration(iteration);
                                 progressWindow.showProgress(0, ( (iteration * 3) + regPlane), (iteration_count * 3) );
                                 progressWindow.showStatus(0, "Iteration " + (iteration+1) + " of " + iteration_count + "; Plane " + orthoplane);
-                                // Iterate through source_images to reslice
+				// Present each image to StackRegister in the current plane as a permuted view, rather than a resliced copy.
+				// The views are created only while each image is projected or transformed.
+				ImagePlus[] plane_images = new ImagePlus[image_count];
 				for (int src = 0; src < image_count; src++) {
 
-					int threads_to_use = thread_count;
-					if ( (image_count - src) < thread_count ) {
-						threads_to_use = (image_count - src);
-					}
-					// Iterate through threads
-					for (int i = 0; i < threads_to_use; i++) {
-
-						//images_done++;
-						//IJ.log("images_done = " + images_done);
-						final int current_image = src;
-						final int current_iteration = iteration;
-						final OrthogonalTransformSequence.OrthogonalPlane current_plane = orthoplane;
-						final int max_images = image_count;
-						final ImagePlus previous_image = registered_images[current_image];
-						final ImagePlus temp_source = source_images[current_image];
-
-						// Setup current thread
-						threads[i] = new Thread() {
-
-							{ setPriority(Thread.NORM_PRIORITY); }
-
-							public void run() {
-
-								// Reslice current image
-								IJ.log("Reslicing image " + (current_image+1) + " of " + max_images);
-								if (current_iteration == 0) {
-									switch (current_plane) {
-										case YZ:
-											if (temp_source == null) IJ.log("temp_source == null");
-											resliced_images[current_image] = reslice(temp_source);//source_images[current_image]);
-											if (resliced_images[current_image] == null) IJ.log("resliced_images["+current_image+"] == null");
-											//temp_source.close();//source_images[current_image].close();
-											break;
-										default:
-											// This is not the first plane, so reslice previously registered_images
-											resliced_images[current_image] = reslice(previous_image);
-											break;
-									}
-								} else {
-									// This is not the first plane, so reslice previously registered_images
-									resliced_images[current_image] = reslice(previous_image);
-								}
-								if (resliced_images[current_image] == null) IJ.log("resliced_images["+current_image+"] == null");
-							}
-						};
+					if (iteration == 0 && orthoplane == OrthogonalTransformSequence.OrthogonalPlane.YZ) {
 
-						// Increment current source image
-						src++;
-					}
-					src--;
+						// This is the first plane, so reslice source_images
+						if (source_images[src] == null) IJ.log("source_images[" + src + "] == null");
+						plane_images[src] = source_images[src];
+						source_images[src] = null;
+					} else {
 
-					// Start threads and wait until finished
-					try {
-						for (int i = 0; i < threads_to_use; i++) {
-							threads[i].start();
-						}
-						for (int i = 0; i < threads_to_use; i++) {
-							threads[i].join();
-						}
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+						// This is not the first plane, so reslice previously registered_images
+						plane_images[src] = registered_images[src];
+						registered_images[src] = null;
 					}
 				}
 
 				// Register source_images
 				IJ.log("\n-----\nOrthogonal Plane " + orthoplane + "\n-----\n");
-				if (resliced_images[0] == null) IJ.log("resliced_images[0] == null");
-				StackRegister sr = new StackRegister(resliced_images, progressWindow);
+				StackRegister sr = new StackRegister(plane_images, 1, progressWindow);
+				plane_images = null;
+				sr.setVolumeStore(volume_store);
+				sr.setRegistrationMode(registration_mode);
+				sr.setTemplateRounds(template_rounds);
+				sr.setNeighbourCount(neighbour_count);
+				sr.setLabels(true);
 				registered_images = sr.getTransformedImages();
 
+				// Measure the overlap only when it decides whether to stop, since it reads every registered image
+				if (stop_threshold > 0) {
+
+					dice = getGroupDice(registered_images);
+					IJ.log("Mean pairwise Dice after iteration " + (iteration+1) + ", plane " + orthoplane + ": " + IJ.d2s(dice, 4));
+				}
+
 				// Store tranforms for the current orthoplane
 				switch (orthoplane) {
 					case XY: ot[iteration][0] = sr.getOrthogonalTransforms();
@@ -276,8 +373,44 @@ public class LabelRegistration3D_ implements PlugIn {
 					default: ot[0][0] = sr.getOrthogonalTransforms();
 						 break;
 				}
+
+				// The last plane is checkpointed once its iteration is complete
+				if (checkpoint != null && save_checkpoints && regPlane < 3) {
+
+					checkpoint.save(iteration, regPlane, ot, registered_images, source_dimensions, iteration_count, pyramid_levels, dice, previous_dice, previous_factor);
+				}
 			}
+
+			// Store the transforms of down-sampled iterations at full resolution
+			if (level_factor > 1) scaleIteration(ot, iteration, registered_images, base_images);
+
+			// Stop once a whole iteration fails to improve the overlap by the threshold, but never part way through the pyramid
+			if (stop_threshold > 0 && iteration < iteration_count - 1) {
+
+				if (level_factor == 1 && dice - previous_dice < stop_threshold) {
+
+					iterations_done = iteration + 1;
+					IJ.log("Converged after " + iterations_done + " of " + iteration_count + " iterations (Dice improved by "
+					       + IJ.d2s(dice - previous_dice, 4) + ")");
+					break;
+				}
+				previous_dice = dice;
+			}
+			if (checkpoint != null && save_checkpoints) {
+
+				checkpoint.save(iteration, 3, ot, registered_images, source_dimensions, iteration_count, pyramid_levels, dice, previous_dice, previous_factor);
+			}
+		}
+
+		// Keep only the iterations that were run, so that the saved sequences record where registration stopped
+		if (iterations_done < iteration_count) {
+
+			OrthogonalTransform[][][] ot_done = new OrthogonalTransform[iterations_done][][];
+			System.arraycopy(ot, 0, ot_done, 0, iterations_done);
+			ot = ot_done;
+			iteration_count = iterations_done;
 		}
+		if (stop_threshold > 0) IJ.log("Final mean pairwise Dice after " + iteration_count + " iterations: " + IJ.d2s(dice, 4));
 		
 
 		// Advance to first plane
@@ -296,8 +429,9 @@ public class LabelRegistration3D_ implements PlugIn {
 		IJ.log("Registered " + image_count + " images in " + min_elapsed + " minutes!");
                 progressWindow.setVisible(false);
 
-		// Save coeffs to user-specified folder
+		// Save coeffs to user-specified folder. The stacks are written in the background, while the next are made and shown.
 		DirectoryChooser dc = new DirectoryChooser("Select folder to save serial orthogonal transforms... - ATLAS toolkit");
+		StackWriter writer = new StackWriter(compression);
 		OrthogonalTransformSequence[] ots = new OrthogonalTransformSequence[image_count];
 		for (int image = 0; image < image_count; image++) {
 
@@ -315,37 +449,326 @@ public class LabelRegistration3D_ implements PlugIn {
 			
 			// Save & show registered_images
 			//IJ.save(registered_images[image], dc.getDirectory() + "/label" + image + ".tif");
-                        IJ.save(registered_images[image], dc.getDirectory() + "/" +  input_filename[image]);
-			registered_images[image].show();
+			registered_images[image].setTitle(input_filename[image]);
+                        String label_path = writer.save(registered_images[image], dc.getDirectory() + "/" +  input_filename[image]);
+			if (!label_path.endsWith(input_filename[image])) IJ.log("Saving registered " + input_filename[image] + " as " + new File(label_path).getName());
+			if (display) registered_images[image].show();
 		}
 
-		// Calculate intersection of registered images, save & show
-		ImagePlus intersection = getIntersection(registered_images);
+		// Count the registered images labelling each voxel, then derive the consensus and probability map, save & show
+		ImagePlus votes = getVoteCount(registered_images);
+		int min_votes = (consensus_votes == 0) ? image_count : Math.min(consensus_votes, image_count);
+		ImagePlus consensus = getConsensus(votes, min_votes);
+		ImagePlus probability = getProbabilityMap(votes, image_count);
+		IJ.log("Consensus of at least " + min_votes + " of " + image_count + " images");
+
+		consensus.setTitle("consensus");
+		writer.save(consensus, dc.getDirectory() + "/consensus.tif");
+		if (display) consensus.show();
+		votes.setTitle("votes");
+		writer.save(votes, dc.getDirectory() + "/votes.tif");
+		if (display) votes.show();
+		probability.setTitle("probability");
+		writer.save(probability, dc.getDirectory() + "/probability.tif");
+		if (display) probability.show();
+
+		// Wait for the stacks to be written, e.g. before volumes held in scratch files can be released
+		IJ.showStatus("Saving...");
+		if (writer.close()) IJ.log("Saved results to " + dc.getDirectory());
+		IJ.showStatus("Saving...done!");
+	}
+
+	static void isolateLabel(ImagePlus label_image, int label) {
 
-		intersection.setTitle("consensus");
-		intersection.show();
-		IJ.save(intersection, dc.getDirectory() + "/consensus.tif");
-		//intersection.show();
+		// Sets the voxels of the chosen label to 255 and all others to 0, in place
+		isolateLabels(label_image, new int[] {label}, new int[] {255});
 	}
 
-	private void advance_plane(ImagePlus[] image_array, int plane_count) {
+	static void isolateLabels(ImagePlus label_image, int[] labels, int[] levels) {
+
+		/*
+		 * Sets the voxels of each chosen label to its grey level and all others to 0, in place. 8 and 16-bit slices go
+		 * through a lookup table on their raw pixel arrays, and every slice is an independent task.
+		 */
+
+		final ImageStack stack = label_image.getStack();
+		final short[] lut = new short[65536];
+		for (int i = 0; i < labels.length; i++) {
+
+			if (labels[i] >= 0 && labels[i] < lut.length) lut[labels[i]] = (short)levels[i];
+		}
+		WorkerPool.forEach(stack.getSize(), new WorkerPool.IndexedTask() {
+
+			public void run(int z) {
+
+				Object pixels = stack.getPixels(z + 1);
+				if (pixels instanceof byte[]) {
+
+					byte[] values = (byte[])pixels;
+					for (int i = 0; i < values.length; i++) values[i] = (byte)lut[values[i] & 0xff];
+
+				} else if (pixels instanceof short[]) {
+
+					short[] values = (short[])pixels;
+					for (int i = 0; i < values.length; i++) values[i] = lut[values[i] & 0xffff];
 
-		for (int i = 0; i < plane_count; i++) {
-			for (int image = 0; image < image_array.length; image++) {
-				if (image_array[image] == null) IJ.log("image_array[" + image + "] == null");
-				ImagePlus temp = reslice(image_array[image]);
-				image_array[image] = temp;
-				IJ.showStatus("Advancing plane...");
-                                if (progressWindow != null) progressWindow.showStatus(1, "Advancing plane...");
-				IJ.showProgress( (i * image_array.length) + image, plane_count * image_array.length);
-                                if (progressWindow != null) progressWindow.showProgress(1, (i * image_array.length) + image, plane_count * image_array.length);
-				if (image_array[image] == null) {
-					IJ.log("image_array[" + image + "] == null");
 				} else {
-					IJ.log("image_array[" + image + "] != null");
+
+					ImageProcessor ip = stack.getProcessor(z + 1);
+					for (int i = 0; i < ip.getPixelCount(); i++) {
+
+						int value = ip.get(i);
+						ip.set(i, (value >= 0 && value < lut.length) ? lut[value] : 0);
+					}
 				}
 			}
+		});
+	}
+
+	static int[] getLabels(int label, String more_labels) {
+
+		// The chosen label followed by any others listed, e.g. "3, 5", without repeats
+		int[] labels = new int[256];
+		int label_count = 0;
+		labels[label_count++] = label;
+		for (String token : more_labels.split("[,;\\s]+")) {
+
+			if (token.length() == 0) continue;
+			int more_label;
+			try {
+
+				more_label = Integer.parseInt(token);
+
+			} catch (NumberFormatException e) {
+
+				IJ.log("Ignoring channel \"" + token + "\"");
+				continue;
+			}
+			boolean repeat = false;
+			for (int i = 0; i < label_count; i++) repeat |= (labels[i] == more_label);
+			if (!repeat && more_label >= 0 && label_count < labels.length) labels[label_count++] = more_label;
+		}
+
+		return Arrays.copyOf(labels, label_count);
+	}
+
+	static int[] getLabelLevels(int label_count) {
+
+		/*
+		 * Spreads the grey levels of the labels from 255 down to 128, so that each label is told apart in the guide
+		 * projections, while every thresholding at half of 255, e.g. for Dice, votes and down-sampling, still sees the
+		 * union of the labels. A single label is 255. There are only 128 such levels.
+		 */
+
+		if (label_count > MAX_LABELS) throw new IllegalArgumentException("At most " + MAX_LABELS + " labels can be registered jointly");
+		int[] levels = new int[label_count];
+		for (int i = 0; i < label_count; i++) levels[i] = 255 - ((i * 128) / label_count);
+
+		return levels;
+	}
+
+	static ImagePlus downsample(ImagePlus label_image, int factor) {
+
+		return downsample(label_image, factor, new int[] {255});
+	}
+
+	static ImagePlus downsample(ImagePlus label_image, int factor, int[] levels) {
+
+		/*
+		 * Shrinks a label image by factor along each axis. The union of the labels is averaged and re-thresholded at half
+		 * of 255, as a single label is, and each voxel it keeps takes the label whose own mask, averaged separately, covers
+		 * most of it. Averaging the grey levels together would instead make up levels in between neighbouring labels.
+		 */
+
+		if (levels.length == 1) {
+
+			label_image = shrink(label_image, factor);
+			threshold(label_image.getStack(), 255);
+
+			return label_image;
 		}
+
+		// Average the union of the labels, then the mask of each label in turn, keeping the label that covers each voxel most
+		ImagePlus union = shrink(getMask(label_image, levels), factor);
+		ImageStack union_stack = union.getStack();
+		int pixel_count = union.getWidth() * union.getHeight();
+		byte[][] best_level = new byte[union_stack.getSize()][pixel_count];
+		byte[][] best_coverage = new byte[union_stack.getSize()][pixel_count];
+		for (int level : levels) {
+
+			ImageStack coverage_stack = shrink(getMask(label_image, new int[] {level}), factor).getStack();
+			for (int z = 0; z < coverage_stack.getSize(); z++) {
+
+				byte[] coverage = (byte[])coverage_stack.getPixels(z + 1);
+				for (int i = 0; i < pixel_count; i++) {
+
+					if ((coverage[i] & 0xff) > (best_coverage[z][i] & 0xff)) {
+
+						best_coverage[z][i] = coverage[i];
+						best_level[z][i] = (byte)level;
+					}
+				}
+			}
+		}
+		for (int z = 0; z < union_stack.getSize(); z++) {
+
+			byte[] pixels = (byte[])union_stack.getPixels(z + 1);
+			for (int i = 0; i < pixel_count; i++) pixels[i] = ((pixels[i] & 0xff) >= 128) ? best_level[z][i] : 0;
+		}
+		union.setTitle(label_image.getTitle());
+
+		return union;
+	}
+
+	static private ImagePlus shrink(ImagePlus image, int factor) {
+
+		// Shrink an 8-bit image by factor along each axis, averaging in x & y then interpolating in z
+		int width = Math.max(image.getWidth() / factor, 2);
+		int height = Math.max(image.getHeight() / factor, 2);
+		int depth = Math.max(image.getStackSize() / factor, 2);
+		StackProcessor sp = new StackProcessor(image.getStack());
+		image.setStack(sp.resize(width, height, true));	// Resize in x & y
+
+		return new Resizer().zScale(image, depth, ImageProcessor.BILINEAR);
+	}
+
+	static ImagePlus getMask(ImagePlus label_image, int[] levels) {
+
+		// A copy of an 8-bit label image in which voxels at any of levels are 255 and all others are 0
+		boolean[] in_mask = new boolean[256];
+		for (int level : levels) in_mask[level] = true;
+		ImageStack stack = label_image.getStack();
+		ImageStack mask_stack = new ImageStack(stack.getWidth(), stack.getHeight());
+		for (int z = 1; z <= stack.getSize(); z++) {
+
+			byte[] pixels = (byte[])stack.getPixels(z);
+			byte[] mask = new byte[pixels.length];
+			for (int i = 0; i < pixels.length; i++) mask[i] = in_mask[pixels[i] & 0xff] ? (byte)255 : 0;
+			mask_stack.addSlice(null, mask);
+		}
+		ImagePlus mask_image = new ImagePlus(label_image.getTitle(), mask_stack);
+		mask_image.setCalibration(label_image.getCalibration().copy());
+
+		return mask_image;
+	}
+
+	static private void threshold(ImageStack stack, int level) {
+
+		// Voxels of at least half of 255 take level, and all others become 0
+		int[] lut = new int[256];
+		for (int value = 128; value < 256; value++) lut[value] = level;
+		for (int slice = 1; slice <= stack.getSize(); slice++) {
+
+			stack.getProcessor(slice).applyTable(lut);
+		}
+	}
+
+	static int getPyramidFactor(int iteration, int iteration_count, int pyramid_levels) {
+
+		/*
+		 * Spread the iterations over the pyramid levels, coarsest first, so that the last iteration is always at full
+		 * resolution. Each level halves the resolution of the one after it.
+		 */
+
+		int level = (pyramid_levels - 1) - (((iteration_count - 1 - iteration) * pyramid_levels) / iteration_count);
+
+		return 1 << (pyramid_levels - 1 - level);
+	}
+
+	static private ImagePlus[] getLevelImages(BinaryVolume[] base_images, OrthogonalTransform[][][] ot, int iterations_done, int factor,
+						  VolumeStore volume_store) {
+
+		/*
+		 * Down-sample each full-resolution label image by factor, then apply the first iterations_done iterations of its
+		 * transforms, which are stored at full resolution, through a single composed displacement field. Each level image
+		 * is moved to volume_store, if there is one, as soon as it is made.
+		 */
+
+		ImagePlus[] level_images = new ImagePlus[base_images.length];
+		for (int image = 0; image < base_images.length; image++) {
+
+			ImagePlus level_image = base_images[image].toImagePlus();
+			if (factor > 1) level_image = downsample(level_image, factor, base_images[image].getLevels());
+			if (iterations_done > 0) {
+
+				OrthogonalTransform[][] image_ot = new OrthogonalTransform[iterations_done][3];
+				for (int iteration = 0; iteration < iterations_done; iteration++) {
+					for (int plane = 0; plane < 3; plane++) {
+
+						image_ot[iteration][plane] = ot[iteration][plane][image];
+					}
+				}
+				int[] base_dimensions = {base_images[image].getWidth(), base_images[image].getHeight(), base_images[image].getSize()};
+				OrthogonalTransformSequence ots = new OrthogonalTransformSequence(image_ot, base_dimensions);
+				DisplacementField3D field = DisplacementField3D.compose(ots, iterations_done, level_image.getWidth(), level_image.getHeight(),
+											level_image.getStackSize(), 1);
+				level_image = field.applyTo(level_image, true);
+			}
+			level_images[image] = park(volume_store, image, level_image);
+		}
+
+		return level_images;
+	}
+
+	static private ImagePlus park(VolumeStore volume_store, int index, ImagePlus image) {
+
+		// Move an image to the volume store, if there is one, keeping it on the heap if the store cannot be written
+		if (volume_store == null) return image;
+		try {
+
+			if (index < volume_store.getSize()) {
+				volume_store.set(index, image);
+			} else if (index == volume_store.getSize()) {
+				volume_store.add(image);
+			} else {
+				return image;	// An earlier image could not be stored
+			}
+			return volume_store.get(index);
+
+		} catch (IOException e) {
+
+			IJ.log("Could not write image " + (index+1) + " to the volume store: " + e.getMessage());
+			return image;
+		}
+	}
+
+	static private void scaleIteration(OrthogonalTransform[][][] ot, int iteration, ImagePlus[] level_images, BinaryVolume[] base_images) {
+
+		// Rescale each image's plane transforms for this iteration from the level resolution to full resolution
+		for (int image = 0; image < base_images.length; image++) {
+
+			OrthogonalTransform[][] image_ot = new OrthogonalTransform[1][3];
+			for (int plane = 0; plane < 3; plane++) {
+
+				image_ot[0][plane] = ot[iteration][plane][image];
+			}
+			int[] level_dimensions = {level_images[image].getWidth(), level_images[image].getHeight(), level_images[image].getStackSize()};
+			int[] base_dimensions = {base_images[image].getWidth(), base_images[image].getHeight(), base_images[image].getSize()};
+			OrthogonalTransformSequence ots = new OrthogonalTransformSequence(image_ot, level_dimensions).getScaled(base_dimensions);
+			ot[iteration][0][image] = ots.getOrthogonalTransform(OrthogonalTransformSequence.OrthogonalPlane.XY, 0);
+			ot[iteration][1][image] = ots.getOrthogonalTransform(OrthogonalTransformSequence.OrthogonalPlane.YZ, 0);
+			ot[iteration][2][image] = ots.getOrthogonalTransform(OrthogonalTransformSequence.OrthogonalPlane.ZX, 0);
+		}
+	}
+
+	private void advance_plane(final ImagePlus[] image_array, final int plane_count) {
+
+		// Materialize a view rotated through plane_count planes, i.e. a single pass rather than one reslice per plane,
+		// with each image as an independent task of the shared pool
+		IJ.showStatus("Advancing plane...");
+                if (progressWindow != null) progressWindow.showStatus(1, "Advancing plane...");
+		final AtomicInteger images_done = new AtomicInteger(0);
+		WorkerPool.forEach(image_array.length, new WorkerPool.IndexedTask() {
+
+			public void run(int image) {
+
+				if (image_array[image] == null) IJ.log("image_array[" + image + "] == null");
+				image_array[image] = park(volume_store, image, new PermutedVolume(image_array[image], plane_count).toImagePlus());
+				int done = images_done.incrementAndGet();
+				IJ.showProgress(done, image_array.length);
+                                if (progressWindow != null) progressWindow.showProgress(1, done, image_array.length);
+			}
+		});
 		//return image_array;
 	}
 
@@ -355,48 +778,88 @@ public class LabelRegistration3D_ implements PlugIn {
 		 * Reslices the supplied image plus and returns it. After performing 3 times on the same ImagePlus, it will return to the original orientation.
 		 */
 
-		// Get dimensions of input_image
-		int[] input_dimensions = input_image.getDimensions();
-
-		// Define a stack to contain the resliced output: y becomes x; z becomes y; x becomes z
-		ImageStack output_stack = ImageStack.create(input_dimensions[1], input_dimensions[3], input_dimensions[0], input_image.getBitDepth());
-
 		// Show status
 		IJ.showStatus("Reslicing image stack...");
                 if (progressWindow != null) progressWindow.showStatus(1, "Reslicing image stack...");
 
-		// Iterate through voxels of input_image
-		for (int z = 0; z < input_dimensions[3]; z++) {
+		// Transpose the backing pixel arrays in tiles, sharing output slices between threads
+		ImagePlus output_image = StackReslicer.reslice(input_image);
+
+		return output_image;
+	}
+
+	static public double getGroupDice(ImagePlus[] label_images) {
+
+		/*
+		 * Returns the mean pairwise Dice coefficient of the non-zero voxels of label_images, with every image aligned at its
+		 * origin. The pairs are pooled, i.e. 2 * (sum of pairwise intersections) / (sum of pairwise volumes), which can be
+		 * counted in a single pass as sum(c * (c-1)) / ((n-1) * sum(c)), where c is the number of images labelling a voxel.
+		 */
 
-			// Show progress
-			IJ.showProgress(z, input_dimensions[3]);
-                        if (progressWindow != null) progressWindow.showProgress(1, z, input_dimensions[3]);
+		final int n = label_images.length;
+		if (n < 2) return 1;
 
-			for (int y = 0; y < input_dimensions[1]; y++) {
+		// Get biggest dimensions
+		int biggest_x = 0, biggest_y = 0, biggest_z = 0;
+		for (int i = 0; i < n; i++) {
 
-				for (int x = 0; x < input_dimensions[0]; x++) {
+			biggest_x = Math.max(biggest_x, label_images[i].getWidth());
+			biggest_y = Math.max(biggest_y, label_images[i].getHeight());
+			biggest_z = Math.max(biggest_z, label_images[i].getStackSize());
+		}
+		final ImageStack[] stacks = new ImageStack[n];
+		for (int i = 0; i < n; i++) stacks[i] = label_images[i].getStack();
+
+		// Count the labelling images of each voxel, sharing slices between tasks
+		final int width = biggest_x;
+		final int height = biggest_y;
+		final int depth = biggest_z;
+		final long[] pair_total = new long[depth];
+		final long[] label_total = new long[depth];
+		WorkerPool.forEach(depth, new WorkerPool.IndexedTask() {
+
+			public void run(int z) {
+
+				int[] count = new int[width * height];
+				for (int i = 0; i < n; i++) {
+
+					if (z >= stacks[i].getSize()) continue;
+					ImageProcessor ip = stacks[i].getProcessor(z + 1);
+					int image_width = ip.getWidth();
+					int image_height = ip.getHeight();
+					for (int y = 0; y < image_height; y++) {
+						for (int x = 0; x < image_width; x++) {
+
+							if (ip.get(x, y) != 0) count[y * width + x]++;
+						}
+					}
+				}
+				long pairs = 0, labelled = 0;
+				for (int v = 0; v < count.length; v++) {
 
-					// Copy voxel value from input_image to output stack
-					output_stack.setVoxel(y, z, x, input_image.getStack().getVoxel(x, y, z) );
+					pairs += (long)count[v] * (count[v] - 1);
+					labelled += count[v];
 				}
+				pair_total[z] = pairs;
+				label_total[z] = labelled;
 			}
-		}
-		
-		// Put output_stack into an ImagePlus
-		ImagePlus output_image = new ImagePlus("Reslice of " + input_image.getTitle(), output_stack);
+		});
 
-		// Adjust calibration of output_image
-		output_image.getCalibration().pixelWidth  = input_image.getCalibration().pixelHeight;
-		output_image.getCalibration().pixelHeight = input_image.getCalibration().pixelDepth;
-		output_image.getCalibration().pixelDepth  = input_image.getCalibration().pixelWidth;
+		long pairs = 0, labelled = 0;
+		for (int z = 0; z < depth; z++) {
 
-		return output_image;
+			pairs += pair_total[z];
+			labelled += label_total[z];
+		}
+		if (labelled == 0) return 0;
+
+		return (double)pairs / ((double)(n - 1) * labelled);
 	}
 
 	static public ImagePlus getIntersection(ImagePlus[] input_images) {
 
-		// Returns the intersection of every image in input_images by performing an AND operaton on successive pairs
-		// To succeed, all input_images must be scaled to the same dimensions
+		// Returns the intersection of every image in input_images, i.e. the voxels labelled in all of them
+		// Images of different sizes are scaled to the largest dimensions found
 
 		// Check that input_images contains more than one image
 		if (input_images.length < 2) {
@@ -404,70 +867,203 @@ public class LabelRegistration3D_ implements PlugIn {
 			return null;
 		}
 
-		IJ.log("Getting intersection of registered stacks:");
+		return getConsensus(getVoteCount(input_images), input_images.length);
+	}
+
+	static public ImagePlus getVoteCount(ImagePlus[] input_images) {
+
+		/*
+		 * Counts, for each voxel, the number of input_images that label it, in a single pass over all of them. Each image is
+		 * scaled to the largest dimensions found on the fly, by trilinear interpolation with pixel centres aligned, rather
+		 * than through resized copies, and a voxel is labelled where the interpolated value is at least half of 255.
+		 * Returns a stack of counts from 0 to input_images.length, which is 8-bit for up to 255 images and 16-bit above.
+		 */
 
-		ImageCalculator ic = new ImageCalculator();
-		Resizer rs = new Resizer();
+		IJ.log("Counting votes of " + input_images.length + " registered stacks");
+		final int n = input_images.length;
 
 		// Get biggest dimensions
 		int biggest_x = 0, biggest_y = 0, biggest_z = 0;
-		for (int i = 0; i < input_images.length; i++) {
+		for (int i = 0; i < n; i++) {
 
 			int dimensions[] = input_images[i].getDimensions();
 			if (dimensions[0] > biggest_x) biggest_x = dimensions[0];
 			if (dimensions[1] > biggest_y) biggest_y = dimensions[1];
 			if (dimensions[3] > biggest_z) biggest_z = dimensions[3];
 		}
-		IJ.log(" -Found biggest dimensions");
 
-		// Iterate through input_images
-		for (int i = 0; i < input_images.length; i++) {
+		ImageStack vote_stack = new ImageStack(biggest_x, biggest_y);
+		for (int z = 0; z < biggest_z; z++) {
 
-			// Scale current input_image to the largest dimensions found
-			StackProcessor sp = new StackProcessor(input_images[i].getImageStack());
-			input_images[i].setStack(sp.resize(biggest_x, biggest_y, true));	// Resize in x & y
-			input_images[i] = rs.zScale(input_images[i], biggest_z, ImageProcessor.BILINEAR);
-			IJ.log(" -Resized image #" + (i+1) );
+			vote_stack.addSlice(null, (n > 255) ? new ShortProcessor(biggest_x, biggest_y) : new ByteProcessor(biggest_x, biggest_y));
+		}
+		ImagePlus votes = new ImagePlus("votes", vote_stack);
+		addVotes(votes, input_images);
 
-			// Iterate through slices of input_images[i]
-			//ImageStack stack = input_images[i].getStack();
-			/*for (int slice = 0; slice < biggest_y; slice ++) {
+		return votes;
+	}
 
-				// Muliply the current slice by 1/255, i.e. divide by 255
-				//ImageProcessor ip = stack.getProcessor(slice + 1);
-				input_images[i].setSlice(slice+1);
-				ImageProcessor ip = input_images[i].getProcessor();
-				ip.multiply(1.00/255.00);
-				input_images[i].show();
-			}*/
+	static public void addVotes(ImagePlus votes, ImagePlus[] input_images) {
 
-			// Multiply input_images[0] by input_images[i], i.e. intersecting voxels will be mulitplied by 1 and non-intersecting by 0
-			//if (i > 0) {
-				
-			//	input_images[0] = ic.run("Multiply stack", input_images[0], input_images[i]);
-			//	IJ.log("Intersected images #1 and #" + (i+1) );
-			//}
+		/*
+		 * Adds the votes of input_images to an 8 or 16-bit stack of counts, in place, e.g. to extend the vote count of a
+		 * registered group by a new specimen without revisiting the others. Each image is scaled to the dimensions of votes.
+		 * If a count could pass the largest value of the stack's type, an IllegalArgumentException is thrown before any
+		 * count is changed, rather than letting it wrap.
+		 */
+
+		final int n = input_images.length;
+		final ImageStack vote_stack = votes.getStack();
+		final int width = vote_stack.getWidth();
+		final int height = vote_stack.getHeight();
+		final int depth = vote_stack.getSize();
+		int max_count = (votes.getBitDepth() == 16) ? 65535 : 255;
+		int counted = 0;
+		for (int slice = 1; slice <= depth; slice++) {
+
+			ImageProcessor count = vote_stack.getProcessor(slice);
+			for (int i = 0; i < count.getPixelCount(); i++) counted = Math.max(counted, count.get(i));
 		}
+		if (counted + n > max_count) {
 
-		if (input_images[0] == null) {
-			IJ.log("input_images[0] == null");
-		} else {
-			IJ.log("input_images[0] != null");
+			throw new IllegalArgumentException(votes.getBitDepth() + "-bit vote counts cannot hold " + counted + " + " + n + " votes");
 		}
 
-		for (int i = 1; i < input_images.length; i++) {
+		// Map each output column, row and slice to the two samples either side of it in each image
+		final ImageStack[] stacks = new ImageStack[n];
+		final int[][][] x_samples = new int[n][][];
+		final int[][][] y_samples = new int[n][][];
+		final int[][][] z_samples = new int[n][][];
+		final float[][] x_weights = new float[n][];
+		final float[][] y_weights = new float[n][];
+		final float[][] z_weights = new float[n][];
+		for (int i = 0; i < n; i++) {
+
+			stacks[i] = input_images[i].getStack();
+			x_samples[i] = getSamples(stacks[i].getWidth(), width);
+			y_samples[i] = getSamples(stacks[i].getHeight(), height);
+			z_samples[i] = getSamples(stacks[i].getSize(), depth);
+			x_weights[i] = getWeights(stacks[i].getWidth(), width);
+			y_weights[i] = getWeights(stacks[i].getHeight(), height);
+			z_weights[i] = getWeights(stacks[i].getSize(), depth);
+		}
 
-			ImagePlus temp_image = ic.run("AND stack create", input_images[0], input_images[i]);
-			IJ.log(" -Intersected images #1 and #" + (i+1) );
-			if (temp_image == null) {
-				IJ.log("temp_image == null");
-			} else {
-				IJ.log("temp_image != null");
+		// Share the output slices between tasks
+		WorkerPool.forEach(depth, new WorkerPool.IndexedTask() {
+
+			public void run(int z) {
+
+				ImageProcessor count = vote_stack.getProcessor(z + 1);
+				for (int i = 0; i < n; i++) {
+
+					ImageProcessor lower = stacks[i].getProcessor(z_samples[i][0][z] + 1);
+					ImageProcessor upper = stacks[i].getProcessor(z_samples[i][1][z] + 1);
+					float wz = z_weights[i][z];
+					int source_width = lower.getWidth();
+					for (int y = 0; y < height; y++) {
+
+						int row0 = y_samples[i][0][y] * source_width;
+						int row1 = y_samples[i][1][y] * source_width;
+						float wy = y_weights[i][y];
+						for (int x = 0; x < width; x++) {
+
+							int x0 = x_samples[i][0][x];
+							int x1 = x_samples[i][1][x];
+							float wx = x_weights[i][x];
+							float value_lower = (1 - wy) * ((1 - wx) * lower.getf(row0 + x0) + wx * lower.getf(row0 + x1))
+									  + wy * ((1 - wx) * lower.getf(row1 + x0) + wx * lower.getf(row1 + x1));
+							float value_upper = (wz == 0) ? value_lower
+									  : (1 - wy) * ((1 - wx) * upper.getf(row0 + x0) + wx * upper.getf(row0 + x1))
+									  + wy * ((1 - wx) * upper.getf(row1 + x0) + wx * upper.getf(row1 + x1));
+							if ((1 - wz) * value_lower + wz * value_upper >= 127.5f) {
+
+								int index = (y * width) + x;
+								count.set(index, count.get(index) + 1);
+							}
+						}
+					}
+				}
 			}
-			input_images[0] = temp_image;
-			//temp_image.show();
+		});
+	}
+
+	static public ImagePlus getConsensus(ImagePlus votes, int min_votes) {
+
+		// Returns a binary (0/255) stack of the voxels labelled in at least min_votes images
+		ImageStack vote_stack = votes.getStack();
+		ImageStack consensus_stack = new ImageStack(vote_stack.getWidth(), vote_stack.getHeight());
+		min_votes = Math.max(min_votes, 1);
+		for (int slice = 1; slice <= vote_stack.getSize(); slice++) {
+
+			ImageProcessor count = vote_stack.getProcessor(slice);
+			byte[] pixels = new byte[count.getPixelCount()];
+			for (int i = 0; i < pixels.length; i++) pixels[i] = (count.get(i) >= min_votes) ? (byte)255 : 0;
+			consensus_stack.addSlice(null, new ByteProcessor(vote_stack.getWidth(), vote_stack.getHeight(), pixels, null));
+		}
+
+		return new ImagePlus("consensus", consensus_stack);
+	}
+
+	static public ImagePlus getProbabilityMap(ImagePlus votes, int image_count) {
+
+		// Returns a 32-bit stack of the fraction of images labelling each voxel
+		ImageStack vote_stack = votes.getStack();
+		ImageStack probability_stack = new ImageStack(vote_stack.getWidth(), vote_stack.getHeight());
+		for (int slice = 1; slice <= vote_stack.getSize(); slice++) {
+
+			ImageProcessor count = vote_stack.getProcessor(slice);
+			float[] pixels = new float[count.getPixelCount()];
+			for (int i = 0; i < pixels.length; i++) pixels[i] = count.get(i) / (float)image_count;
+			probability_stack.addSlice(null, new FloatProcessor(vote_stack.getWidth(), vote_stack.getHeight(), pixels, null));
+		}
+
+		return new ImagePlus("probability", probability_stack);
+	}
+
+	static public ImagePlus getShortVotes(ImagePlus votes) {
+
+		// Returns a 16-bit copy of an 8-bit vote count, with the counts unchanged, so that more than 255 images can vote
+		if (votes.getBitDepth() == 16) return votes;
+		ImageStack vote_stack = votes.getStack();
+		ImageStack short_stack = new ImageStack(vote_stack.getWidth(), vote_stack.getHeight());
+		for (int slice = 1; slice <= vote_stack.getSize(); slice++) {
+
+			byte[] count = (byte[])vote_stack.getPixels(slice);
+			short[] pixels = new short[count.length];
+			for (int i = 0; i < count.length; i++) pixels[i] = (short)(count[i] & 0xff);
+			short_stack.addSlice(null, new ShortProcessor(vote_stack.getWidth(), vote_stack.getHeight(), pixels, null));
+		}
+		ImagePlus short_votes = new ImagePlus(votes.getTitle(), short_stack);
+		short_votes.setCalibration(votes.getCalibration().copy());
+
+		return short_votes;
+	}
+
+	static private int[][] getSamples(int source_length, int target_length) {
+
+		// The lower and upper source index either side of each target index, with pixel centres aligned
+		int[][] samples = new int[2][target_length];
+		for (int t = 0; t < target_length; t++) {
+
+			double s = Math.max(((t + 0.5) * source_length / target_length) - 0.5, 0);
+			samples[0][t] = Math.min((int)s, source_length - 1);
+			samples[1][t] = Math.min(samples[0][t] + 1, source_length - 1);
+		}
+
+		return samples;
+	}
+
+	static private float[] getWeights(int source_length, int target_length) {
+
+		// The weight of the upper source index of each target index
+		float[] weights = new float[target_length];
+		for (int t = 0; t < target_length; t++) {
+
+			double s = Math.max(((t + 0.5) * source_length / target_length) - 0.5, 0);
+			weights[t] = (float)Math.min(s - (int)s, 1);
+			if ((int)s >= source_length - 1) weights[t] = 0;
 		}
 
-		return input_images[0];
+		return weights;
 	}
 }
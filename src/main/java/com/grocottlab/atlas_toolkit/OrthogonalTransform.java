@@ -30,6 +30,9 @@ package com.grocottlab.atlas_toolkit;
  */
 public class OrthogonalTransform implements java.io.Serializable {
     
+	// Fixed to the value computed for the original class, so that legacy serialized ".ots" files can still be read
+	private static final long serialVersionUID = -2175211470045754310L;
+
     private double[][] x_coefficients;
 	private double[][] y_coefficients;
 	private int intervals;
@@ -59,79 +62,106 @@ public class OrthogonalTransform implements java.io.Serializable {
 	}
 
 	/**
-         * Calculates the mean average X and Y coefficients from a set of OrthogonalTransform objects.
          * 
-         * By calculating the mean coefficients for a group of pairwise transforms, a number of 2D 
-         * images can be registered in group-wise fashion.
+         * @param transform An instance of bunwarpj.Transformation
+         * @param inverse If true, take the inverse (target to source) deformation coefficients, which are only 
+         * computed when bUnwarpJ runs in a bidirectional mode.
+         */
+        public OrthogonalTransform(bunwarpj.Transformation transform, boolean inverse) {
+
+		if (inverse) {
+
+			x_coefficients = transform.getInverseDeformationCoefficientsX();
+			y_coefficients = transform.getInverseDeformationCoefficientsY();
+
+		} else {
+
+			x_coefficients = transform.getDirectDeformationCoefficientsX();
+			y_coefficients = transform.getDirectDeformationCoefficientsY();
+		}
+		intervals = transform.getIntervals();
+	}
+
+	/**
+         * Creates a transform that leaves an image unchanged.
          * 
-         * @param ot A set of OrthogonalTransform objects to be averaged.
-         * @return A single OrthogonalTransform object containing the mean average X and Y coefficients.
+         * bUnwarpJ samples the deformation at intervals + 3 B-spline control points in each direction, spread
+         * evenly over the image, and cubic B-splines reproduce a linear function exactly from its samples.
+         * 
+         * @param width The width of the image to be transformed.
+         * @param height The height of the image to be transformed.
+         * @param intervals The number of B-spline intervals.
+         * @return An OrthogonalTransform containing identity X and Y coefficients.
          */
-        static public OrthogonalTransform computeAverageTransform(OrthogonalTransform[] ot) {
+        static public OrthogonalTransform getIdentity(int width, int height, int intervals) {
 
-		// Get x_coeff
-		double [][] first_x_coeff = ot[0].getCoefficientsX();
-		int x_dim_1 = first_x_coeff.length;
-		int x_dim_2 = first_x_coeff[0].length;
-		double [][][] x_coeff = new double [ot.length][x_dim_1][x_dim_2];
-		for (int i = 0; i < ot.length; i++) {
+		double[][] x_coeff = new double[intervals + 3][intervals + 3];
+		double[][] y_coeff = new double[intervals + 3][intervals + 3];
+		for (int i = 0; i < intervals + 3; i++) {
+			for (int j = 0; j < intervals + 3; j++) {
 
-			x_coeff[i] = ot[i].getCoefficientsX();
+				x_coeff[i][j] = ( (j - 1) * (double)(width - 1) ) / intervals;
+				y_coeff[i][j] = ( (i - 1) * (double)(height - 1) ) / intervals;
+			}
 		}
 
-		// Calculate mean_x_coeff
-		double [][] mean_x_coeff = new double [x_dim_1][x_dim_2];
-					
-			// Iterate through x_dim_1
-			for (int i1 = 0; i1 < x_dim_1; i1++) {
+		return new OrthogonalTransform(x_coeff, y_coeff, intervals);
+	}
 
-				// Iterate through x_dim_2
-				for (int i2 = 0; i2 < x_dim_2; i2++) {
+	/**
+         * Creates a copy of this transform for an image resampled to a different size.
+         * 
+         * bUnwarpJ spreads the B-spline grid evenly over the image whatever its size, while the coefficients
+         * are pixel coordinates, so resampling the image by a factor simply scales the coefficients.
+         * 
+         * @param x_scale The factor by which x coordinates are scaled, i.e. (new width - 1) / (old width - 1).
+         * @param y_scale The factor by which y coordinates are scaled, i.e. (new height - 1) / (old height - 1).
+         * @return A new OrthogonalTransform with scaled X and Y coefficients.
+         */
+        public OrthogonalTransform getScaled(double x_scale, double y_scale) {
 
-					double coeff_total = 0.0;
-						
-					// Iterate through x_coeff
-					for (int pair = 0; pair < ot.length; pair++) {
+		double[][] x_coeff = new double[x_coefficients.length][];
+		double[][] y_coeff = new double[y_coefficients.length][];
+		for (int i = 0; i < x_coeff.length; i++) {
 
-						coeff_total = coeff_total + x_coeff[pair][i1][i2];
-					}
+			x_coeff[i] = new double[x_coefficients[i].length];
+			for (int j = 0; j < x_coeff[i].length; j++) {
 
-					mean_x_coeff[i1][i2] = ( coeff_total / (double)(ot.length) );
-				}
+				x_coeff[i][j] = x_coefficients[i][j] * x_scale;
 			}
+		}
+		for (int i = 0; i < y_coeff.length; i++) {
 
-		// Get y_coeff
-		double [][] first_y_coeff = ot[0].getCoefficientsY();
-		int y_dim_1 = first_y_coeff.length;
-		int y_dim_2 = first_y_coeff[0].length;
-		double [][][] y_coeff = new double [ot.length][y_dim_1][y_dim_2];
-		for (int i = 0; i < ot.length; i++) {
+			y_coeff[i] = new double[y_coefficients[i].length];
+			for (int j = 0; j < y_coeff[i].length; j++) {
 
-			y_coeff[i] = ot[i].getCoefficientsY();
+				y_coeff[i][j] = y_coefficients[i][j] * y_scale;
+			}
 		}
 
-		// Calculate mean_y_coeff
-		double [][] mean_y_coeff = new double [y_dim_1][y_dim_2];
-					
-			// Iterate through y_dim_1
-			for (int i1 = 0; i1 < y_dim_1; i1++) {
-
-				// Iterate through y_dim_2
-				for (int i2 = 0; i2 < y_dim_2; i2++) {
+		return new OrthogonalTransform(x_coeff, y_coeff, intervals);
+	}
 
-					double coeff_total = 0.0;
-						
-					// Iterate through y_coeff
-					for (int pair = 0; pair < ot.length; pair++) {
+	/**
+         * Calculates the mean average X and Y coefficients from a set of OrthogonalTransform objects.
+         * 
+         * By calculating the mean coefficients for a group of pairwise transforms, a number of 2D 
+         * images can be registered in group-wise fashion.
+         * 
+         * @param ot A set of OrthogonalTransform objects to be averaged.
+         * @return A single OrthogonalTransform object containing the mean average X and Y coefficients.
+         * @see TransformAccumulator
+         */
+        static public OrthogonalTransform computeAverageTransform(OrthogonalTransform[] ot) {
 
-						coeff_total = coeff_total + y_coeff[pair][i1][i2];
-					}
+		// Fold each transform into running sums of the coefficients
+		TransformAccumulator accumulator = new TransformAccumulator(ot.length);
+		for (int i = 0; i < ot.length; i++) {
 
-					mean_y_coeff[i1][i2] = ( coeff_total / (double)(ot.length) );
-				}
-			}
+			accumulator.add(i, ot[i]);
+		}
 
-		return new OrthogonalTransform(mean_x_coeff, mean_y_coeff, ot[0].getIntervals() );
+		return accumulator.getMean();
 	}
 
 	/**
@@ -23,6 +23,11 @@ package com.grocottlab.atlas_toolkit;
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A class for storing a sequence of orthogonal 2D transformation coefficients generated by bUnwarpJ.
@@ -33,6 +38,13 @@ import java.io.*;
  * 
  * The class also provides methods for saving and re-opening the orthogonal transform sequence.
  * 
+ * An ".ots" file is a little-endian binary container. The header holds the magic number "OTSB", the
+ * format version, the x, y and z dimensions of the source image, the number of iterations and then,
+ * for each iteration and plane (in XY, YZ, ZX order), the number of intervals and the number of rows and
+ * columns of the coefficient arrays. The header is followed by one contiguous block of doubles per 
+ * transform, holding the X coefficients row by row and then the Y coefficients. Files written by earlier
+ * versions using Java serialization can still be opened.
+ * 
  */
 public class OrthogonalTransformSequence implements java.io.Serializable {
     
@@ -40,6 +52,13 @@ public class OrthogonalTransformSequence implements java.io.Serializable {
      * Defines the three 2D orthogonal planes (XY, YZ, ZX) of a 3D (XYZ) image stack.
      */
     public enum OrthogonalPlane {YZ, ZX, XY}
+
+	// Fixed to the value computed for the original class, so that legacy serialized ".ots" files can still be read
+	private static final long serialVersionUID = -4761953568246933322L;
+
+	static final int OTS_MAGIC = 0x4253544F;	// "OTSB" when written little-endian
+	static final int OTS_VERSION = 1;
+	static final int SERIALIZATION_MAGIC = 0xACED;	// First two bytes of a Java serialization stream
 	private OrthogonalTransform[][] ot;
 	private int[] intervals;
 	private int[] dimensions = new int[3]; // 0 = x, 1 = y, 2 = z. Allows for scaling of transforms in case labels were down-sampled.
@@ -75,11 +94,45 @@ public class OrthogonalTransformSequence implements java.io.Serializable {
 	/**
          * Generates an OrthogonalTransformSequence object from a previously saved ".ots" file.
          * 
+         * Both the binary format and the legacy serialized format are recognised.
+         * 
          * @param path The absolute file path.
-         * @return The re-opened OrthogonalTransformSequence object.
+         * @return The re-opened OrthogonalTransformSequence object, or null if the file could not be read.
          */
         static public OrthogonalTransformSequence openOTS (String path) {
 
+            OrthogonalTransformSequence ots = null;
+            try {
+                RandomAccessFile file = new RandomAccessFile(path, "r");
+                try {
+                    FileChannel channel = file.getChannel();
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    if (buffer.remaining() >= 4 && buffer.getInt(0) == OTS_MAGIC) {
+
+                        ots = read(buffer);
+
+                    } else if (buffer.remaining() >= 2 && (buffer.order(ByteOrder.BIG_ENDIAN).getShort(0) & 0xFFFF) == SERIALIZATION_MAGIC) {
+
+                        ots = openLegacyOTS(path);
+
+                    } else {
+
+                        throw new IOException(path + " is not an orthogonal transform sequence");
+                    }
+                } finally {
+                    file.close();
+                }
+            
+            } catch(IOException i) {
+                
+                i.printStackTrace();
+            }
+                return ots;
+	}
+
+	static private OrthogonalTransformSequence openLegacyOTS (String path) throws IOException {
+
             OrthogonalTransformSequence ots = null;
             try {
                 FileInputStream fileIn = new FileInputStream(path);
@@ -88,10 +141,6 @@ public class OrthogonalTransformSequence implements java.io.Serializable {
                 in.close();
                 fileIn.close();
             
-            } catch(IOException i) {
-                
-                i.printStackTrace();
-            
             } catch(ClassNotFoundException c) {
                 
                 System.out.println("!!!!!Class not found!!!!!");
@@ -100,6 +149,66 @@ public class OrthogonalTransformSequence implements java.io.Serializable {
                 return ots;
 	}
 
+	static private OrthogonalTransformSequence read (ByteBuffer buffer) throws IOException {
+
+		// Read the header, checking that every size fits in the file before anything is allocated
+		if (buffer.limit() < 4 * 6) throw new IOException("Truncated .ots header");
+		buffer.position(4);
+		int version = buffer.getInt();
+		if (version != OTS_VERSION) throw new IOException("Unsupported .ots version: " + version);
+		int[] dimensions = new int[3];
+		for (int d = 0; d < 3; d++) {
+
+			dimensions[d] = buffer.getInt();
+		}
+		int iteration_count = buffer.getInt();
+		if (iteration_count < 0 || iteration_count > buffer.remaining() / (3 * 3 * 4)) {
+
+			throw new IOException("Invalid .ots iteration count: " + iteration_count);
+		}
+		int[][] shape = new int[iteration_count * 3][3];	// intervals, rows, columns
+		long block_bytes = 0;
+		for (int t = 0; t < shape.length; t++) {
+			for (int d = 0; d < 3; d++) {
+
+				shape[t][d] = buffer.getInt();
+			}
+			if (shape[t][0] < 1 || shape[t][1] < 1 || shape[t][2] < 1) {
+
+				throw new IOException("Invalid .ots transform shape: " + shape[t][0] + ", " + shape[t][1] + ", " + shape[t][2]);
+			}
+			if ((long)shape[t][1] * shape[t][2] > (buffer.remaining() - block_bytes) / (2 * 8)) throw new IOException("Truncated .ots coefficients");
+			block_bytes = block_bytes + (2L * shape[t][1] * shape[t][2] * 8);
+		}
+
+		if (block_bytes > buffer.remaining()) throw new IOException("Truncated .ots coefficients");
+
+		// Read the coefficient blocks as views of the mapped file
+		OrthogonalTransform[][] ot = new OrthogonalTransform[iteration_count][3];
+		for (int t = 0; t < shape.length; t++) {
+
+			int rows = shape[t][1];
+			int columns = shape[t][2];
+			ByteBuffer block = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+			block.limit(2 * rows * columns * 8);
+			DoubleBuffer coefficients = block.asDoubleBuffer();
+			double[][] x_coeff = new double[rows][columns];
+			double[][] y_coeff = new double[rows][columns];
+			for (int row = 0; row < rows; row++) {
+
+				coefficients.get(x_coeff[row]);
+			}
+			for (int row = 0; row < rows; row++) {
+
+				coefficients.get(y_coeff[row]);
+			}
+			buffer.position(buffer.position() + block.limit());
+			ot[t / 3][t % 3] = new OrthogonalTransform(x_coeff, y_coeff, shape[t][0]);
+		}
+
+		return new OrthogonalTransformSequence(ot, dimensions);
+	}
+
 	/**
          * Sets the transformation coefficients (as an OrthogonalTransform object) for the given orthogonal plane and iteration.
          * 
@@ -208,11 +317,47 @@ public class OrthogonalTransformSequence implements java.io.Serializable {
             return iteration_count;
 	}
 
-	public int[] getDimensions () {
+	/**
+         * Gets the x, y and z dimensions of the image the sequence was computed on.
+         * 
+         * @return The dimensions, or zeros if they were not recorded.
+         */
+        public int[] getDimensions () {
 
 		return dimensions;
 	}
 
+	/**
+         * Creates a copy of this sequence for an image of different dimensions, e.g. the full-resolution image 
+         * when the registration was computed on down-sampled labels.
+         * 
+         * Each plane transform is scaled by the change in size of the two axes of its plane.
+         * 
+         * @param target_dimensions The x, y and z dimensions of the image to be transformed.
+         * @return A new OrthogonalTransformSequence, or this sequence if the dimensions are unchanged or were not recorded.
+         */
+        public OrthogonalTransformSequence getScaled (int[] target_dimensions) {
+
+		if (dimensions == null || java.util.Arrays.equals(dimensions, target_dimensions)) return this;
+		double[] scale = new double[3];
+		for (int d = 0; d < 3; d++) {
+
+			if (dimensions[d] < 2 || target_dimensions[d] < 2) return this;
+			scale[d] = (double)(target_dimensions[d] - 1) / (double)(dimensions[d] - 1);
+		}
+
+		// XY spans x and y, YZ spans y and z and ZX spans z and x
+		OrthogonalTransform[][] scaled_ot = new OrthogonalTransform[iteration_count][3];
+		for (int iteration = 0; iteration < iteration_count; iteration++) {
+
+			scaled_ot[iteration][0] = ot[iteration][0].getScaled(scale[0], scale[1]);
+			scaled_ot[iteration][1] = ot[iteration][1].getScaled(scale[1], scale[2]);
+			scaled_ot[iteration][2] = ot[iteration][2].getScaled(scale[2], scale[0]);
+		}
+
+		return new OrthogonalTransformSequence(scaled_ot, target_dimensions.clone());
+	}
+
 	/**
          * Saves this OrthogonalTransformSequence object to an ".ots" file.
          * 
@@ -222,12 +367,51 @@ public class OrthogonalTransformSequence implements java.io.Serializable {
          */
         public void saveToFile(String path) {
 		
+		// Calculate the size of the header and coefficient blocks
+		long size = 4 * (6 + (iteration_count * 3 * 3));
+		for (int iteration = 0; iteration < iteration_count; iteration++) {
+			for (int plane = 0; plane < 3; plane++) {
+
+				double[][] x_coeff = ot[iteration][plane].getCoefficientsX();
+				size = size + (2L * x_coeff.length * x_coeff[0].length * 8);
+			}
+		}
+
+		// Write the header, then the X and Y coefficients of each transform
+		ByteBuffer buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(OTS_MAGIC);
+		buffer.putInt(OTS_VERSION);
+		for (int d = 0; d < 3; d++) {
+
+			buffer.putInt((dimensions == null) ? 0 : dimensions[d]);
+		}
+		buffer.putInt(iteration_count);
+		for (int iteration = 0; iteration < iteration_count; iteration++) {
+			for (int plane = 0; plane < 3; plane++) {
+
+				double[][] x_coeff = ot[iteration][plane].getCoefficientsX();
+				buffer.putInt(ot[iteration][plane].getIntervals());
+				buffer.putInt(x_coeff.length);
+				buffer.putInt(x_coeff[0].length);
+			}
+		}
+		for (int iteration = 0; iteration < iteration_count; iteration++) {
+			for (int plane = 0; plane < 3; plane++) {
+
+				putCoefficients(buffer, ot[iteration][plane].getCoefficientsX());
+				putCoefficients(buffer, ot[iteration][plane].getCoefficientsY());
+			}
+		}
+		buffer.flip();
+
 		try {
 			
 			FileOutputStream fileOut = new FileOutputStream(path);
-			ObjectOutputStream out = new ObjectOutputStream(fileOut);
-			out.writeObject(this);
-			out.close();
+			FileChannel channel = fileOut.getChannel();
+			while (buffer.hasRemaining()) {
+
+				channel.write(buffer);
+			}
 			fileOut.close();
 			
 		} catch(IOException i) {
@@ -235,4 +419,13 @@ public class OrthogonalTransformSequence implements java.io.Serializable {
 			i.printStackTrace();
 		}
 	}
+
+	static private void putCoefficients(ByteBuffer buffer, double[][] coefficients) {
+
+		for (int row = 0; row < coefficients.length; row++) {
+
+			buffer.asDoubleBuffer().put(coefficients[row]);
+			buffer.position(buffer.position() + (coefficients[row].length * 8));
+		}
+	}
 }
@@ -0,0 +1,596 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * An axis-permuted view of a 3D (XYZ) image stack.
+ *
+ * The view reads voxels straight from the pixel arrays of the underlying stack, so that an image
+ * can be presented to StackRegister in the next orthogonal plane without materializing a resliced
+ * copy. Each rotation is equivalent to one call to StackReslicer.reslice(), i.e. y becomes x, z
+ * becomes y and x becomes z. Three rotations return to the original orientation. A volume held in a
+ * VolumeStore is read through views of its mapped slices, so that a view never copies it onto the heap.
+ *
+ */
+public class PermutedVolume {
+
+	private Object[] slices;	// Pixel arrays of the underlying stack, or Buffers of a mapped stack
+	private int source_width;
+	private int source_height;
+	private int source_depth;
+	private int rotations;		// 0, 1 or 2
+	private int width;
+	private int height;
+	private int depth;
+	private int bit_depth;
+	private String title;
+	private Calibration calibration;
+
+	/**
+	 * Creates a view of the supplied image in its original orientation.
+	 *
+	 * @param image The image stack to be viewed.
+	 */
+	public PermutedVolume(ImagePlus image) {
+
+		this(image, 0);
+	}
+
+	/**
+	 * Creates a view of the supplied image rotated through the given number of orthogonal planes.
+	 *
+	 * @param image The image stack to be viewed.
+	 * @param rotations The number of reslices the view is equivalent to. Any integer is accepted (modulo 3).
+	 */
+	public PermutedVolume(ImagePlus image, int rotations) {
+
+		ImageStack stack = image.getStack();
+		source_width  = stack.getWidth();
+		source_height = stack.getHeight();
+		source_depth  = stack.getSize();
+		slices = new Object[source_depth];
+		for (int z = 0; z < source_depth; z++) {
+
+			slices[z] = (stack instanceof VolumeStore.MappedStack) ? ((VolumeStore.MappedStack)stack).getBuffer(z+1) : stack.getPixels(z+1);
+		}
+		this.rotations = ((rotations % 3) + 3) % 3;
+		bit_depth = image.getBitDepth();
+
+		// Permute dimensions and calibration
+		Calibration source_calibration = image.getCalibration();
+		calibration = source_calibration.copy();
+		switch (this.rotations) {
+			case 0: width = source_width; height = source_height; depth = source_depth;
+				title = image.getTitle();
+				break;
+			case 1: width = source_height; height = source_depth; depth = source_width;
+				calibration.pixelWidth  = source_calibration.pixelHeight;
+				calibration.pixelHeight = source_calibration.pixelDepth;
+				calibration.pixelDepth  = source_calibration.pixelWidth;
+				title = "Reslice of " + image.getTitle();
+				break;
+			case 2: width = source_depth; height = source_width; depth = source_height;
+				calibration.pixelWidth  = source_calibration.pixelDepth;
+				calibration.pixelHeight = source_calibration.pixelWidth;
+				calibration.pixelDepth  = source_calibration.pixelHeight;
+				title = "Reslice of Reslice of " + image.getTitle();
+				break;
+		}
+	}
+
+	/**
+	 * Gets the dimensions a view of an image would have, without creating it.
+	 *
+	 * @param image The image stack to be viewed.
+	 * @param rotations The number of reslices the view is equivalent to.
+	 * @return The width, height and depth of the view.
+	 */
+	static public int[] getDimensions(ImagePlus image, int rotations) {
+
+		int source_width = image.getWidth();
+		int source_height = image.getHeight();
+		int source_depth = image.getStackSize();
+		switch (((rotations % 3) + 3) % 3) {
+			case 1: return new int[] {source_height, source_depth, source_width};
+			case 2: return new int[] {source_depth, source_width, source_height};
+			default: return new int[] {source_width, source_height, source_depth};
+		}
+	}
+
+	public int getWidth() {
+
+		return width;
+	}
+
+	public int getHeight() {
+
+		return height;
+	}
+
+	/**
+	 * Gets the number of slices in the view.
+	 *
+	 * @return The depth of the view.
+	 */
+	public int getSize() {
+
+		return depth;
+	}
+
+	public int getBitDepth() {
+
+		return bit_depth;
+	}
+
+	public String getTitle() {
+
+		return title;
+	}
+
+	public Calibration getCalibration() {
+
+		return calibration;
+	}
+
+	/**
+	 * Gets the value of a single voxel, in view coordinates.
+	 *
+	 * @return The voxel value.
+	 */
+	public float getVoxel(int x, int y, int z) {
+
+		switch (rotations) {
+			case 1: return getSourceVoxel(z, x, y);
+			case 2: return getSourceVoxel(y, z, x);
+			default: return getSourceVoxel(x, y, z);
+		}
+	}
+
+	private float getSourceVoxel(int x, int y, int z) {
+
+		Object pixels = slices[z];
+		int index = (y * source_width) + x;
+		if (pixels instanceof byte[]) {
+
+			return ((byte[])pixels)[index] & 0xff;
+
+		} else if (pixels instanceof short[]) {
+
+			return ((short[])pixels)[index] & 0xffff;
+
+		} else if (pixels instanceof float[]) {
+
+			return ((float[])pixels)[index];
+
+		} else if (pixels instanceof int[]) {
+
+			return ((int[])pixels)[index];
+
+		} else if (pixels instanceof ByteBuffer) {
+
+			return ((ByteBuffer)pixels).get(index) & 0xff;
+
+		} else if (pixels instanceof ShortBuffer) {
+
+			return ((ShortBuffer)pixels).get(index) & 0xffff;
+
+		} else if (pixels instanceof FloatBuffer) {
+
+			return ((FloatBuffer)pixels).get(index);
+		}
+		return ((IntBuffer)pixels).get(index);
+	}
+
+	/**
+	 * Copies a single slice of the view into a new ImageProcessor of the same type as the underlying stack.
+	 *
+	 * @param slice The slice number, 1 &lt;= slice &lt;= getSize(), as for ImageStack.getProcessor().
+	 * @return A new ImageProcessor holding a copy of the slice.
+	 */
+	public ImageProcessor getProcessor(int slice) {
+
+		int c = slice - 1;
+		Object output = createPixels(width * height);
+
+		switch (rotations) {
+			case 0:
+				if (slices[c] instanceof Buffer) {
+					copy((Buffer)slices[c], output);
+				} else {
+					System.arraycopy(slices[c], 0, output, 0, width * height);
+				}
+				break;
+			case 1:
+				// view(a, b, c) = source(c, a, b): gather one source column per output row
+				for (int b = 0; b < height; b++) {
+
+					Object input = slices[b];
+					int output_offset = b * width;
+					if (input instanceof byte[]) {
+
+						byte[] in = (byte[])input;
+						byte[] out = (byte[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in[index];
+
+					} else if (input instanceof short[]) {
+
+						short[] in = (short[])input;
+						short[] out = (short[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in[index];
+
+					} else if (input instanceof float[]) {
+
+						float[] in = (float[])input;
+						float[] out = (float[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in[index];
+
+					} else if (input instanceof int[]) {
+
+						int[] in = (int[])input;
+						int[] out = (int[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in[index];
+
+					} else if (input instanceof ByteBuffer) {
+
+						ByteBuffer in = (ByteBuffer)input;
+						byte[] out = (byte[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in.get(index);
+
+					} else if (input instanceof ShortBuffer) {
+
+						ShortBuffer in = (ShortBuffer)input;
+						short[] out = (short[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in.get(index);
+
+					} else if (input instanceof FloatBuffer) {
+
+						FloatBuffer in = (FloatBuffer)input;
+						float[] out = (float[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in.get(index);
+
+					} else {
+
+						IntBuffer in = (IntBuffer)input;
+						int[] out = (int[])output;
+						for (int a = 0, index = c; a < width; a++, index += source_width) out[output_offset + a] = in.get(index);
+					}
+				}
+				break;
+			case 2:
+				// view(a, b, c) = source(b, c, a): each source slice contributes one contiguous row
+				// which becomes one output column
+				for (int a = 0; a < width; a++) {
+
+					Object input = slices[a];
+					int input_offset = c * source_width;
+					if (input instanceof byte[]) {
+
+						byte[] in = (byte[])input;
+						byte[] out = (byte[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in[input_offset + b];
+
+					} else if (input instanceof short[]) {
+
+						short[] in = (short[])input;
+						short[] out = (short[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in[input_offset + b];
+
+					} else if (input instanceof float[]) {
+
+						float[] in = (float[])input;
+						float[] out = (float[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in[input_offset + b];
+
+					} else if (input instanceof int[]) {
+
+						int[] in = (int[])input;
+						int[] out = (int[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in[input_offset + b];
+
+					} else if (input instanceof ByteBuffer) {
+
+						ByteBuffer in = (ByteBuffer)input;
+						byte[] out = (byte[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in.get(input_offset + b);
+
+					} else if (input instanceof ShortBuffer) {
+
+						ShortBuffer in = (ShortBuffer)input;
+						short[] out = (short[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in.get(input_offset + b);
+
+					} else if (input instanceof FloatBuffer) {
+
+						FloatBuffer in = (FloatBuffer)input;
+						float[] out = (float[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in.get(input_offset + b);
+
+					} else {
+
+						IntBuffer in = (IntBuffer)input;
+						int[] out = (int[])output;
+						for (int b = 0; b < height; b++) out[(b * width) + a] = in.get(input_offset + b);
+					}
+				}
+				break;
+		}
+
+		return createProcessor(width, height, output);
+	}
+
+	/**
+	 * Calculates the mean average projection of the view along its z axis.
+	 *
+	 * Equivalent to ZProjector.AVG_METHOD applied to the resliced stack, but reads the underlying
+	 * pixel arrays in storage order.
+	 *
+	 * @return An ImagePlus containing the average projection, of the same type ZProjector would return.
+	 */
+	public ImagePlus getAverageProjection() {
+
+		double[] sum = new double[width * height];
+
+		switch (rotations) {
+			case 0:
+				// Sum slices
+				for (int z = 0; z < source_depth; z++) {
+
+					accumulate(slices[z], 0, sum.length, sum, 0, 1);
+				}
+				break;
+			case 1:
+				// view(a, b, c) = source(c, a, b): sum each source row into one output pixel
+				for (int b = 0; b < height; b++) {
+					for (int a = 0; a < width; a++) {
+
+						sum[(b * width) + a] = sumRun(slices[b], a * source_width, source_width);
+					}
+				}
+				break;
+			case 2:
+				// view(a, b, c) = source(b, c, a): sum the rows of each source slice into one output column
+				for (int a = 0; a < width; a++) {
+					for (int c = 0; c < source_height; c++) {
+
+						accumulate(slices[a], c * source_width, height, sum, a, width);
+					}
+				}
+				break;
+		}
+
+		// Match the output type of ZProjector, which truncates averages of 8 and 16-bit stacks back to the input type
+		ImageProcessor ip;
+		if (bit_depth == 8) {
+
+			byte[] average = new byte[sum.length];
+			for (int i = 0; i < sum.length; i++) average[i] = (byte)(int)(float)(sum[i] / depth);
+			ip = new ByteProcessor(width, height, average, null);
+
+		} else if (bit_depth == 16) {
+
+			short[] average = new short[sum.length];
+			for (int i = 0; i < sum.length; i++) average[i] = (short)(int)(float)(sum[i] / depth);
+			ip = new ShortProcessor(width, height, average, null);
+
+		} else {
+
+			float[] average = new float[sum.length];
+			for (int i = 0; i < sum.length; i++) average[i] = (float)(sum[i] / depth);
+			ip = new FloatProcessor(width, height, average, null);
+		}
+		ImagePlus projection = new ImagePlus("AVG_" + title, ip);
+		projection.setCalibration(calibration.copy());
+
+		return projection;
+	}
+
+	/**
+	 * Materializes the view as a new image stack.
+	 *
+	 * @return A new ImagePlus, equivalent to reslicing the underlying image getRotations() times.
+	 */
+	public ImagePlus toImagePlus() {
+
+		ImageStack stack;
+		if (rotations == 1 && !(slices[0] instanceof Buffer)) {
+
+			// A single rotation is a plain reslice, so use the tiled transpose
+			ImageStack source_stack = new ImageStack(source_width, source_height);
+			for (int z = 0; z < source_depth; z++) {
+
+				source_stack.addSlice(null, slices[z]);
+			}
+			stack = StackReslicer.reslice(source_stack, Runtime.getRuntime().availableProcessors());
+
+		} else {
+
+			stack = new ImageStack(width, height);
+			for (int slice = 1; slice <= depth; slice++) {
+
+				stack.addSlice(null, getProcessor(slice));
+			}
+		}
+		ImagePlus image = new ImagePlus(title, stack);
+		image.setCalibration(calibration.copy());
+
+		return image;
+	}
+
+	public int getRotations() {
+
+		return rotations;
+	}
+
+	static private void accumulate(Object pixels, int offset, int length, double[] sum, int sum_offset, int sum_stride) {
+
+		// Add a contiguous run of pixels to sum, starting at sum_offset and stepping by sum_stride
+		if (pixels instanceof byte[]) {
+
+			byte[] p = (byte[])pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p[offset + i] & 0xff;
+
+		} else if (pixels instanceof short[]) {
+
+			short[] p = (short[])pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p[offset + i] & 0xffff;
+
+		} else if (pixels instanceof float[]) {
+
+			float[] p = (float[])pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p[offset + i];
+
+		} else if (pixels instanceof int[]) {
+
+			int[] p = (int[])pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p[offset + i] & 0xffffff;
+
+		} else if (pixels instanceof ByteBuffer) {
+
+			ByteBuffer p = (ByteBuffer)pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p.get(offset + i) & 0xff;
+
+		} else if (pixels instanceof ShortBuffer) {
+
+			ShortBuffer p = (ShortBuffer)pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p.get(offset + i) & 0xffff;
+
+		} else if (pixels instanceof FloatBuffer) {
+
+			FloatBuffer p = (FloatBuffer)pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p.get(offset + i);
+
+		} else {
+
+			IntBuffer p = (IntBuffer)pixels;
+			for (int i = 0; i < length; i++) sum[sum_offset + (i * sum_stride)] += p.get(offset + i) & 0xffffff;
+		}
+	}
+
+	static private double sumRun(Object pixels, int offset, int length) {
+
+		double total = 0.0;
+		if (pixels instanceof byte[]) {
+
+			byte[] p = (byte[])pixels;
+			for (int i = offset; i < offset + length; i++) total += p[i] & 0xff;
+
+		} else if (pixels instanceof short[]) {
+
+			short[] p = (short[])pixels;
+			for (int i = offset; i < offset + length; i++) total += p[i] & 0xffff;
+
+		} else if (pixels instanceof float[]) {
+
+			float[] p = (float[])pixels;
+			for (int i = offset; i < offset + length; i++) total += p[i];
+
+		} else if (pixels instanceof int[]) {
+
+			int[] p = (int[])pixels;
+			for (int i = offset; i < offset + length; i++) total += p[i] & 0xffffff;
+
+		} else if (pixels instanceof ByteBuffer) {
+
+			ByteBuffer p = (ByteBuffer)pixels;
+			for (int i = offset; i < offset + length; i++) total += p.get(i) & 0xff;
+
+		} else if (pixels instanceof ShortBuffer) {
+
+			ShortBuffer p = (ShortBuffer)pixels;
+			for (int i = offset; i < offset + length; i++) total += p.get(i) & 0xffff;
+
+		} else if (pixels instanceof FloatBuffer) {
+
+			FloatBuffer p = (FloatBuffer)pixels;
+			for (int i = offset; i < offset + length; i++) total += p.get(i);
+
+		} else {
+
+			IntBuffer p = (IntBuffer)pixels;
+			for (int i = offset; i < offset + length; i++) total += p.get(i) & 0xffffff;
+		}
+		return total;
+	}
+
+	private Object createPixels(int length) {
+
+		switch (bit_depth) {
+			case 8: return new byte[length];
+			case 16: return new short[length];
+			case 32: return new float[length];
+			default: return new int[length];
+		}
+	}
+
+	static private void copy(Buffer buffer, Object pixels) {
+
+		// Copy a whole mapped slice into a pixel array, through a private view so that slices can be read from several threads at once
+		if (buffer instanceof ByteBuffer) {
+
+			((ByteBuffer)buffer).duplicate().get((byte[])pixels);
+
+		} else if (buffer instanceof ShortBuffer) {
+
+			((ShortBuffer)buffer).duplicate().get((short[])pixels);
+
+		} else if (buffer instanceof FloatBuffer) {
+
+			((FloatBuffer)buffer).duplicate().get((float[])pixels);
+
+		} else {
+
+			((IntBuffer)buffer).duplicate().get((int[])pixels);
+		}
+	}
+
+	static private ImageProcessor createProcessor(int width, int height, Object pixels) {
+
+		if (pixels instanceof byte[]) {
+
+			return new ByteProcessor(width, height, (byte[])pixels, null);
+
+		} else if (pixels instanceof short[]) {
+
+			return new ShortProcessor(width, height, (short[])pixels, null);
+
+		} else if (pixels instanceof float[]) {
+
+			return new FloatProcessor(width, height, (float[])pixels, null);
+		}
+		return new ColorProcessor(width, height, (int[])pixels);
+	}
+}
@@ -177,6 +177,24 @@ public class ProgressWindow extends JFrame {
         }
     }
     
+    public void resetProgress() {
+        
+        // Set every label to red
+        for (int i = 0; i < stackCount; i++) {
+            
+            for (int j = 0; j < stackCount; j++) {
+                
+                regProgress[i][j].setBackground(Color.getHSBColor( (2.0f / 360.0f), (60.0f / 100.0f), (75.0f / 100.0f) ));
+            }
+        }
+    }
+    
+    public void markProgress(int iStack, int jStack) {
+        
+        // Set the label for a single completed pair to green, as pairs may complete in any order
+        regProgress[iStack][jStack].setBackground(Color.getHSBColor( (80.0f / 360.0f), (52.0f / 100.0f), (73.0f / 100.0f) ));
+    }
+    
     public void clearProgress() {
         
         // Set every label to grey
@@ -0,0 +1,398 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Properties;
+
+/**
+ * A checkpoint of a Label Registration 3D run, so that a run which is interrupted can be resumed.
+ *
+ * After each orthogonal plane is registered, the transforms registered so far, one file per plane and
+ * iteration, and the current registered label images are written to a new generation folder inside the
+ * checkpoint folder. Only then is the small state file, which names the generation and describes how far the
+ * run has got, written under a temporary name and renamed over the previous one, which commits the checkpoint.
+ * The previous generation is deleted only after that, so a crash part way through a checkpoint leaves the
+ * previous state and the files it names intact, and never pairs one state with the labels of another.
+ *
+ */
+public class RegistrationCheckpoint {
+
+	static private final String STATE_FILE = "checkpoint.txt";
+	static private final String GENERATION_PREFIX = "generation";
+	static private final int CHECKPOINT_VERSION = 2;
+
+	private String directory;
+
+	// Progress recorded by the last checkpoint
+	private int iteration = -1;		// The iteration being registered
+	private int planes_done = 0;		// The number of planes of that iteration that have been registered, in OrthogonalPlane order
+	private double dice = -1;
+	private double previous_dice = -1;
+	private int previous_factor = -1;
+
+	/**
+	 * @param directory The folder holding the checkpoint, which is created if necessary.
+	 */
+	public RegistrationCheckpoint(String directory) {
+
+		this.directory = directory;
+		new File(directory).mkdirs();
+	}
+
+	/**
+	 * @return True if the folder holds a checkpoint that could be resumed.
+	 */
+	public boolean exists() {
+
+		return getStateFile() != null;
+	}
+
+	/**
+	 * Writes a checkpoint after a plane has been registered.
+	 *
+	 * @param iteration The iteration being registered.
+	 * @param planes_done The number of planes of this iteration registered so far, from 1 to 3.
+	 * @param ot The transforms, indexed [iteration][plane][image]. Those of the current iteration are written, earlier iterations having already been written.
+	 * @param registered_images The label images as registered so far.
+	 * @param source_dimensions The dimensions of each image at which the transforms apply.
+	 * @param iteration_count The number of iterations of the run.
+	 * @param pyramid_levels The number of pyramid levels of the run.
+	 * @param dice The mean pairwise Dice of registered_images.
+	 * @param previous_dice The Dice against which the current iteration is judged, or -1 if convergence is not being tested.
+	 * @param previous_factor The pyramid factor at which previous_dice was measured.
+	 * @return True if the checkpoint was written. A failure is logged, so that registration can carry on without it.
+	 */
+	public boolean save(int iteration, int planes_done, OrthogonalTransform[][][] ot, ImagePlus[] registered_images, int[][] source_dimensions,
+			    int iteration_count, int pyramid_levels, double dice, double previous_dice, int previous_factor) {
+
+		try {
+
+			write(iteration, planes_done, ot, registered_images, source_dimensions, iteration_count, pyramid_levels, dice, previous_dice, previous_factor);
+
+		} catch (IOException e) {
+
+			IJ.log("Could not save checkpoint to " + directory + ": " + e.getMessage());
+			return false;
+		}
+		this.iteration = iteration;
+		this.planes_done = planes_done;
+		this.dice = dice;
+		this.previous_dice = previous_dice;
+		this.previous_factor = previous_factor;
+		IJ.log("Checkpoint saved: iteration " + (iteration+1) + ", " + planes_done + " of 3 planes");
+
+		return true;
+	}
+
+	private void write(int iteration, int planes_done, OrthogonalTransform[][][] ot, ImagePlus[] registered_images, int[][] source_dimensions,
+			   int iteration_count, int pyramid_levels, double dice, double previous_dice, int previous_factor) throws IOException {
+
+		// Write everything the state will point to into a new generation, clearing out any left by a failed checkpoint
+		int generation = getLastGeneration() + 1;
+		File generation_directory = new File(directory, GENERATION_PREFIX + generation);
+		deleteGeneration(generation_directory);
+		if (!generation_directory.mkdirs()) throw new IOException("Could not create " + generation_directory.getPath());
+
+		// Transforms of every plane registered so far
+		for (int it = 0; it <= iteration; it++) {
+			for (int plane = 0; plane < 3; plane++) {
+
+				if (ot[it][plane] == null || ot[it][plane][0] == null) continue;	// Not yet registered
+				ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(generation_directory, getTransformsName(it, plane))));
+				try {
+
+					out.writeObject(ot[it][plane]);
+
+				} finally {
+
+					out.close();
+				}
+			}
+		}
+
+		// Registered images, keeping their titles
+		for (int image = 0; image < registered_images.length; image++) {
+
+			File file = new File(generation_directory, getImageName(image));
+			String title = registered_images[image].getTitle();
+			boolean saved = new FileSaver(registered_images[image]).saveAsTiffStack(file.getPath());
+			registered_images[image].setTitle(title);
+			if (!saved) throw new IOException("Could not write " + file.getPath());
+		}
+
+		// State, which commits the new generation once it replaces the previous state
+		Properties state = new Properties();
+		state.setProperty("version", "" + CHECKPOINT_VERSION);
+		state.setProperty("generation", "" + generation);
+		state.setProperty("image_count", "" + registered_images.length);
+		state.setProperty("iteration_count", "" + iteration_count);
+		state.setProperty("pyramid_levels", "" + pyramid_levels);
+		for (int image = 0; image < source_dimensions.length; image++) {
+
+			state.setProperty("dimensions" + (image+1), source_dimensions[image][0] + "x" + source_dimensions[image][1] + "x" + source_dimensions[image][2]);
+		}
+		state.setProperty("iteration", "" + iteration);
+		state.setProperty("planes_done", "" + planes_done);
+		state.setProperty("dice", "" + dice);
+		state.setProperty("previous_dice", "" + previous_dice);
+		state.setProperty("previous_factor", "" + previous_factor);
+		File file = new File(directory, STATE_FILE);
+		File temp_file = new File(directory, STATE_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp_file);
+		try {
+
+			state.store(out, "Label Registration 3D checkpoint");
+			out.getFD().sync();
+
+		} finally {
+
+			out.close();
+		}
+		replace(temp_file, file);
+
+		// Only now can the earlier generations go
+		File[] files = new File(directory).listFiles();
+		if (files == null) return;
+		for (File old_file : files) {
+
+			if (getGeneration(old_file) >= 0 && getGeneration(old_file) != generation) deleteGeneration(old_file);
+		}
+	}
+
+	/**
+	 * Reads a checkpoint written by a run with the same images and settings.
+	 *
+	 * @param ot The array, indexed [iteration][plane][image], into which the transforms registered so far are read.
+	 * @param source_dimensions The dimensions of each image at which the transforms apply, which must match those of the checkpoint.
+	 * @param pyramid_levels The number of pyramid levels, which must match that of the checkpoint.
+	 * @return The label images as registered at the checkpoint.
+	 * @throws IOException If the checkpoint could not be read or does not match the run.
+	 */
+	public ImagePlus[] load(OrthogonalTransform[][][] ot, int[][] source_dimensions, int pyramid_levels) throws IOException {
+
+		File state_file = getStateFile();
+		if (state_file == null) throw new IOException("There is no checkpoint in " + directory);
+		Properties state = new Properties();
+		FileInputStream in = new FileInputStream(state_file);
+		try {
+
+			state.load(in);
+
+		} finally {
+
+			in.close();
+		}
+		int image_count = source_dimensions.length;
+		int iteration_count = ot.length;
+		if (getInt(state, "version") != CHECKPOINT_VERSION) throw new IOException("Unsupported checkpoint version " + state.getProperty("version"));
+		if (getInt(state, "image_count") != image_count) {
+
+			throw new IOException("The checkpoint has " + state.getProperty("image_count") + " images, but " + image_count + " were selected");
+		}
+		for (int image = 0; image < image_count; image++) {
+
+			String dimensions = source_dimensions[image][0] + "x" + source_dimensions[image][1] + "x" + source_dimensions[image][2];
+			if (!dimensions.equals(state.getProperty("dimensions" + (image+1)))) {
+
+				throw new IOException("Image #" + (image+1) + " is " + dimensions + " but was " + state.getProperty("dimensions" + (image+1)) + " in the checkpoint");
+			}
+		}
+		if (getInt(state, "pyramid_levels") != pyramid_levels || (pyramid_levels > 1 && getInt(state, "iteration_count") != iteration_count)) {
+
+			throw new IOException("The checkpoint was made with " + state.getProperty("iteration_count") + " iterations and "
+					      + state.getProperty("pyramid_levels") + " pyramid levels");
+		}
+		iteration = getInt(state, "iteration");
+		planes_done = getInt(state, "planes_done");
+		if (iteration >= iteration_count) throw new IOException("The checkpoint has already reached iteration " + (iteration+1));
+		dice = Double.parseDouble(state.getProperty("dice"));
+		previous_dice = Double.parseDouble(state.getProperty("previous_dice"));
+		previous_factor = getInt(state, "previous_factor");
+		File generation_directory = new File(directory, GENERATION_PREFIX + getInt(state, "generation"));
+
+		// Transforms of every plane registered so far
+		OrthogonalTransformSequence.OrthogonalPlane[] planes = OrthogonalTransformSequence.OrthogonalPlane.values();
+		for (int it = 0; it <= iteration; it++) {
+
+			int plane_count = (it < iteration) ? planes.length : planes_done;
+			for (int p = 0; p < plane_count; p++) {
+
+				int plane = getPlaneIndex(planes[p]);
+				ObjectInputStream object_in = new ObjectInputStream(new FileInputStream(new File(generation_directory, getTransformsName(it, plane))));
+				try {
+
+					ot[it][plane] = (OrthogonalTransform[])object_in.readObject();
+
+				} catch (ClassNotFoundException e) {
+
+					throw new IOException("Could not read the transforms of iteration " + (it+1) + ", plane " + planes[p], e);
+
+				} finally {
+
+					object_in.close();
+				}
+			}
+		}
+
+		// Registered images
+		ImagePlus[] registered_images = new ImagePlus[image_count];
+		Opener op = new Opener();
+		for (int image = 0; image < image_count; image++) {
+
+			String path = new File(generation_directory, getImageName(image)).getPath();
+			registered_images[image] = op.openImage(path);
+			if (registered_images[image] == null) throw new IOException("Could not open " + path);
+		}
+		IJ.log("Resuming from checkpoint: iteration " + (iteration+1) + ", " + planes_done + " of 3 planes done");
+
+		return registered_images;
+	}
+
+	/**
+	 * @return The iteration being registered at the checkpoint.
+	 */
+	public int getIteration() {
+
+		return iteration;
+	}
+
+	/**
+	 * @return The number of planes of the checkpoint's iteration that had been registered, in OrthogonalPlane order.
+	 */
+	public int getPlanesDone() {
+
+		return planes_done;
+	}
+
+	public double getDice() {
+
+		return dice;
+	}
+
+	public double getPreviousDice() {
+
+		return previous_dice;
+	}
+
+	public int getPreviousFactor() {
+
+		return previous_factor;
+	}
+
+	static int getPlaneIndex(OrthogonalTransformSequence.OrthogonalPlane orthoplane) {
+
+		// The index of orthoplane in the transform arrays of LabelRegistration3D_
+		switch (orthoplane) {
+			case XY: return 0;
+			case YZ: return 1;
+			case ZX: return 2;
+			default: return 0;
+		}
+	}
+
+	private File getStateFile() {
+
+		// The state, or else a complete new state whose rename over a previous one was interrupted where that is not atomic
+		File file = new File(directory, STATE_FILE);
+		if (file.exists()) return file;
+		File temp_file = new File(directory, STATE_FILE + ".tmp");
+		if (temp_file.exists() && temp_file.length() > 0) return temp_file;
+
+		return null;
+	}
+
+	private int getLastGeneration() {
+
+		int last_generation = 0;
+		File[] files = new File(directory).listFiles();
+		if (files != null) {
+
+			for (File file : files) last_generation = Math.max(last_generation, getGeneration(file));
+		}
+
+		return last_generation;
+	}
+
+	static private int getGeneration(File file) {
+
+		// The number of a generation folder, or -1 if file is not one
+		String name = file.getName();
+		if (!file.isDirectory() || !name.startsWith(GENERATION_PREFIX)) return -1;
+		try {
+
+			return Integer.parseInt(name.substring(GENERATION_PREFIX.length()));
+
+		} catch (NumberFormatException e) {
+
+			return -1;
+		}
+	}
+
+	static private void deleteGeneration(File generation_directory) {
+
+		File[] files = generation_directory.listFiles();
+		if (files == null) return;
+		for (File file : files) file.delete();
+		generation_directory.delete();
+	}
+
+	static private String getTransformsName(int iteration, int plane) {
+
+		return "iteration" + (iteration+1) + "_plane" + plane + ".transforms";
+	}
+
+	static private String getImageName(int image) {
+
+		return "registered" + (image+1) + ".tif";
+	}
+
+	static private int getInt(Properties state, String key) throws IOException {
+
+		try {
+
+			return Integer.parseInt(state.getProperty(key));
+
+		} catch (NumberFormatException e) {
+
+			throw new IOException("The checkpoint has no valid " + key);
+		}
+	}
+
+	static private void replace(File temp_file, File file) throws IOException {
+
+		// Swap a freshly written file into place, in one step where renaming over an existing file is supported
+		if (temp_file.renameTo(file)) return;
+		if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file.getPath());
+		if (!temp_file.renameTo(file)) throw new IOException("Could not rename " + temp_file.getPath() + " to " + file.getName());
+	}
+}
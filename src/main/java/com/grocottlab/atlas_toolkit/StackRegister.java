@@ -24,11 +24,24 @@ package com.grocottlab.atlas_toolkit;
 
 import bunwarpj.MiscTools;
 import bunwarpj.Param;
+import bunwarpj.Transformation;
 import bunwarpj.bUnwarpJ_;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.plugin.ZProjector;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class performs group-wise registration of multiple 3D (XYZ) image stacks in a single 2D 
@@ -44,9 +57,34 @@ public class StackRegister {
 	 *  A class for registering multiple image stacks to one-another.
 	 */ 
 
-	private ImagePlus[] source_images;
+	private PermutedVolume[] source_images;
+	private ImagePlus[] source_stacks = null;	// Images whose views are created only while they are needed
+	private int[] source_rotations = null;
+	private VolumeStore volume_store = null;
+	private ImagePlus[] reference_stacks = null;	// Fixed targets, e.g. the members of an existing group
+	private int reference_rotations = 0;
 	private OrthogonalTransform[] ot = null;
         private ProgressWindow progressWindow;
+	private int thread_count = 0;		// 0 = one per available processor
+	private long memory_budget = 0;		// 0 = half of the free memory
+
+	// Approximate heap used by bUnwarpJ per pixel of guide projection, for both images' pyramids and coefficients
+	static final long REGISTRATION_BYTES_PER_PIXEL = 256;
+
+	/**
+	 * Defines how the pairwise registrations of a group are chosen.
+	 * 
+	 * ALL_PAIRS registers every image to every image, including itself. SYMMETRIC_PAIRS registers each
+	 * unordered pair once in bidirectional mode, taking the mirrored pair from the inverse deformation
+	 * and the identity for self-pairs. TEMPLATE registers each image to the mean of the group, which is
+	 * rebuilt from the warped images after each round, so that cost grows linearly with group size.
+	 * NEAREST_NEIGHBOURS registers each image only to the k others whose guide projections overlap it best.
+	 */
+	public enum RegistrationMode {ALL_PAIRS, SYMMETRIC_PAIRS, TEMPLATE, NEAREST_NEIGHBOURS}
+	private RegistrationMode registration_mode = RegistrationMode.ALL_PAIRS;
+	private int template_rounds = 3;
+	private int neighbour_count = 5;
+	private boolean labels = false;
 
 	// Set the registration_parameters
 	private Param registration_parameters = new Param(2,	// Mode, 2 = mono
@@ -60,27 +98,169 @@ public class StackRegister {
 							  10.0,	// Consistency weight
 							  0.01	// Stop threshold
 							  );
+
+	// Set the parameters for symmetric registration: as above, but bidirectional so that bUnwarpJ also computes the inverse deformation
+	private Param symmetric_parameters = new Param(0,	// Mode, 0 = fast
+						       0,	// Sub-sample factor
+						       2,	// Minimum (final) scale deformation, 2 = fine, 3 = very fine
+						       0,	// Maximum (initial) scale deformation, 0 = very coarse
+						       0.0,	// Divergence weight
+						       0.0,	// Curl weight
+						       0.0,	// Landmark weight
+						       1.0,	// Image weight
+						       10.0,	// Consistency weight
+						       0.01	// Stop threshold
+						       );
 		 
 	public StackRegister(ImagePlus[] source) {
 
 		// Constructor
-		source_images = source;
+		source_images = new PermutedVolume[source.length];
+		for (int i = 0; i < source.length; i++) {
+
+			source_images[i] = new PermutedVolume(source[i]);
+		}
 	}
         
         public StackRegister(ImagePlus[] source, ProgressWindow progressWindow) {
 
 		// Constructor
-		source_images = source;
+		this(source);
                 this.progressWindow = progressWindow;
 	}
 
 	public StackRegister(ImagePlus source) {
 
 		// Constructor
-		source_images = new ImagePlus[1];
+		source_images = new PermutedVolume[1];
+		source_images[0] = new PermutedVolume(source);
+	}
+
+	/**
+	 * Registers axis-permuted views of the source images, e.g. the next orthogonal plane of each
+	 * image, without materializing resliced copies.
+	 * 
+	 * @param source The views to be registered.
+	 * @param progressWindow A ProgressWindow for user feedback, or null.
+	 */
+	public StackRegister(PermutedVolume[] source, ProgressWindow progressWindow) {
+
+		// Constructor
+		source_images = source;
+                this.progressWindow = progressWindow;
+	}
+
+	public StackRegister(PermutedVolume source) {
+
+		// Constructor
+		source_images = new PermutedVolume[1];
 		source_images[0] = source;
 	}
 
+	/**
+	 * Registers axis-permuted views of the source images, creating each view only while it is being
+	 * projected or transformed. Images held in a VolumeStore are then read onto the heap only a few at a time.
+	 * 
+	 * @param source The images to be registered.
+	 * @param rotations The number of reslices each view is equivalent to, e.g. 1 for the next orthogonal plane.
+	 * @param progressWindow A ProgressWindow for user feedback, or null.
+	 */
+	public StackRegister(ImagePlus[] source, int rotations, ProgressWindow progressWindow) {
+
+		// Constructor
+		source_images = new PermutedVolume[source.length];
+		source_stacks = source.clone();
+		source_rotations = new int[source.length];
+		Arrays.fill(source_rotations, rotations);
+                this.progressWindow = progressWindow;
+	}
+
+	/**
+	 * Sets a store in which to hold the transformed images, so that they do not all occupy the heap at once.
+	 * 
+	 * @param volume_store The store, whose volumes are replaced in the order of the source images, or null to keep the transformed images on the heap.
+	 */
+	public void setVolumeStore(VolumeStore volume_store) {
+
+		this.volume_store = volume_store;
+	}
+
+	/**
+	 * Sets fixed references to which each source image is registered, instead of to the other source images,
+	 * e.g. the consensus or the registered members of an existing group. Each source is registered to every
+	 * reference and its transforms are averaged, so the cost grows with the number of references rather
+	 * than with the square of the group. Pairs are not marked in a ProgressWindow in this mode.
+	 * 
+	 * @param references The reference images, which are not transformed.
+	 * @param rotations The number of reslices each reference's view is equivalent to, so that it matches the plane of the sources.
+	 */
+	public void setReferences(ImagePlus[] references, int rotations) {
+
+		this.reference_stacks = references;
+		this.reference_rotations = rotations;
+	}
+
+	/**
+	 * Sets the maximum number of pairwise registrations to run at once.
+	 * 
+	 * @param thread_count The number of worker threads, or 0 to use one per available processor.
+	 */
+	public void setThreadCount(int thread_count) {
+
+		this.thread_count = thread_count;
+	}
+
+	/**
+	 * Sets the amount of memory that concurrent pairwise registrations may use between them.
+	 * 
+	 * @param memory_budget The budget in bytes, or 0 to use half of the currently free memory.
+	 */
+	public void setMemoryBudget(long memory_budget) {
+
+		this.memory_budget = memory_budget;
+	}
+
+	/**
+	 * Sets how the pairwise registrations of the group are chosen.
+	 * 
+	 * @param registration_mode The RegistrationMode to use. The default is ALL_PAIRS.
+	 */
+	public void setRegistrationMode(RegistrationMode registration_mode) {
+
+		this.registration_mode = registration_mode;
+	}
+
+	/**
+	 * Sets the number of times each image is registered to the group template in TEMPLATE mode.
+	 * 
+	 * @param template_rounds The number of rounds, i.e. template_rounds - 1 rebuilds of the template. The default is 3.
+	 */
+	public void setTemplateRounds(int template_rounds) {
+
+		this.template_rounds = Math.max(template_rounds, 1);
+	}
+
+	/**
+	 * Sets the number of peers each image is registered to in NEAREST_NEIGHBOURS mode.
+	 * 
+	 * @param neighbour_count The number of peers, k. The default is 5.
+	 */
+	public void setNeighbourCount(int neighbour_count) {
+
+		this.neighbour_count = Math.max(neighbour_count, 1);
+	}
+
+	/**
+	 * Sets whether 8-bit source images are label volumes, which are then warped by nearest-neighbour lookup
+	 * instead of interpolation.
+	 * 
+	 * @param labels True for label volumes. The default is false.
+	 */
+	public void setLabels(boolean labels) {
+
+		this.labels = labels;
+	}
+
 	public ImagePlus getTransformedImage(OrthogonalTransform ot) {
 
 		/*
@@ -119,58 +299,41 @@ public class StackRegister {
 		}
 
 		// Create registered_images for storing registered images
-		ImagePlus[] registered_images = new ImagePlus[source_images.length];
+		final ImagePlus[] registered_images = new ImagePlus[source_images.length];
 		
-		// Transform source_image using mean coefficients
-		for (int src = 0; src < source_images.length; src++) {
-
-			// Update status
-                        String status = "Image " + (src+1) + " of " + source_images.length + "; Applying transform...";
-			IJ.showStatus(status);
-                        if (progressWindow != null) progressWindow.showStatus(1, status);
-			IJ.log("\n-----\nImage " + (src+1) + " of " + source_images.length + "; Applying transform...\n-----\n");
-
-			// Create a temp_stack from source_image
-			ImageStack temp_stack = source_images[src].createEmptyStack();
-			ImagePlus current_imp;
-			int stack_size = source_images[src].getStack().getSize();
-
-			// Iterate through each slice
-			for (int slice = 1; slice <= stack_size; slice++) {
-
-				// Update progress every ten slices
-                                if (slice % 10 == 0) {
-                                    IJ.showProgress(slice, stack_size);
-                                    if (progressWindow != null) progressWindow.showProgress(1, slice, stack_size);
-                                }
-
-				// Set the current stack slice
-				//source_images[src].setSlice(slice);
-
-				// Copy the current ImageProcessor into a new ImagePlus
-				current_imp = new ImagePlus("Slice_" + slice, source_images[src].getStack().getProcessor(slice));
-
-				// Transform the current slice
-				MiscTools.applyTransformationToSourceMT(current_imp, current_imp, ot[src].getIntervals(), ot[src].getCoefficientsX(), ot[src].getCoefficientsY() );
-
-				// Add ImageProcessor from current_imp to the end of temp_Stack
-				if (source_images[src].getBitDepth() == 8) {
-					
-					temp_stack.addSlice(current_imp.getProcessor().convertToByte(false));
-					
+		// Transform each source_image using mean coefficients as an independent task, whose slices are shared out in turn
+                String status = "Applying transforms to " + source_images.length + " images...";
+		IJ.showStatus(status);
+                if (progressWindow != null) progressWindow.showStatus(1, status);
+		IJ.log("\n-----\n" + status + "\n-----\n");
+		WorkerPool.forEach(source_images.length, new WorkerPool.IndexedTask() {
+
+			public void run(int src) {
+
+				// Evaluate the deformation once, then resample every slice through it
+				PermutedVolume source = getSource(src);
+				DeformationField field = new DeformationField(ot[src], source.getWidth(), source.getHeight());
+				ImageStack temp_stack = field.applyTo(source, progressWindow, labels);
+				source = null;
+
+				// Assign temp_stack to registered_image, releasing the view of the untransformed image
+				registered_images[src] = new ImagePlus("transformed_source #" + (src+1), temp_stack);
+				if (volume_store != null) registered_images[src] = park(src, registered_images[src]);
+				if (source_stacks != null) {
+
+					source_images[src] = null;
+					source_stacks[src] = registered_images[src];
+					source_rotations[src] = 0;
+
 				} else {
 
-					temp_stack.addSlice(current_imp.getProcessor());
+					source_images[src] = new PermutedVolume(registered_images[src]);
 				}
-				
 			}
-
-			// Assign temp_stack to registered_image
-			source_images[src] = new ImagePlus("transformed_source #" + (src+1), temp_stack);
-		}
+		});
 
 		// Return the registered images
-		return source_images;
+		return registered_images;
 	}
 
 	public OrthogonalTransform[] getOrthogonalTransforms() {
@@ -195,63 +358,561 @@ public class StackRegister {
 		 */
 
 		 for (int i = 0; i < source_images.length; i++) {
-		 	 if (source_images[i] == null) {
+		 	 if (source_images[i] == null && (source_stacks == null || source_stacks[i] == null)) {
 
 		 	 	IJ.log("source_images[" + (i+1) + "] == null!");
 		 	 }
 		 }
 
-		// Generate average projections from source_images
-		ImagePlus [] guide_projections = new ImagePlus[source_images.length];
-		ZProjector zp = new ZProjector();
-		for (int i = 0; i < source_images.length; i++) {
+		// Generate average projections from source_images, each as an independent task of the shared pool
+		IJ.log("Projecting " + source_images.length + " source images");
+		List<Future<ImagePlus>> guide_projections = submitProjections();
 
-			IJ.log("Projecting source image " + (i + 1) + " of " + source_images.length);
-			zp.setImage(source_images[i]);
-			zp.setMethod(ZProjector.AVG_METHOD);//MAX_METHOD);
-			zp.doProjection();
-			guide_projections[i] = zp.getProjection();
-		}
+		// Register each guide projection to an evolving template, or pairs of guide_projections[]. Pairwise modes start
+		// each pair as soon as both of its projections are ready; the others need every projection before they can start.
+		final int image_count = source_images.length;
+		OrthogonalTransform[] mean_ot;
+		if (reference_stacks != null) {
 
-		OrthogonalTransform[] mean_ot = new OrthogonalTransform[source_images.length];
+			mean_ot = registerToReferences(guide_projections);
 
-		// Iterate through guide_images, i.e. the 'source images' to be registered
-		for (int src = 0; src < source_images.length; src++) {
+		} else if (registration_mode == RegistrationMode.TEMPLATE) {
 
-			OrthogonalTransform[] temp_ot = new OrthogonalTransform[source_images.length];
+			mean_ot = registerToTemplate(getAll(guide_projections));
 
-			//int pair_counter = 0;
+		} else if (registration_mode == RegistrationMode.NEAREST_NEIGHBOURS) {
 
-			// Update status
-                        String status = "Image " + (src+1) + " of " + source_images.length + "; Calculating transforms...";
-			IJ.showStatus(status);
-                        if (progressWindow != null) progressWindow.showStatus(1, status);
-			IJ.log("\n-----\nImage " + (src+1) + " of " + source_images.length + "; Calculating transforms...\n-----\n");
+			mean_ot = registerToNearestNeighbours(getAll(guide_projections));
 
-			// Iterate through all other guide_images, i.e. the targets we a registering to
-			for (int tgt = 0; tgt < source_images.length; tgt++) {
+		} else if (registration_mode == RegistrationMode.SYMMETRIC_PAIRS) {
 
-				// Update progress
-                                if (progressWindow != null) progressWindow.setProgress(src, tgt);
-				IJ.showProgress(tgt, source_images.length);
-                                if (progressWindow != null) progressWindow.showProgress(1, tgt, source_images.length);
+			mean_ot = registerSymmetricPairs(guide_projections);
 
-				// Register the current src/tgt pair from guide_projections[]
-				temp_ot[tgt] = new OrthogonalTransform(bUnwarpJ_.computeTransformationBatch(guide_projections[tgt],	// Target image plus
-													    guide_projections[src],	// Souce image plus
-													    null,			// Target Mask image processor
-													    null,			// Source Mask image processor
-													    registration_parameters   // Registration parameters
-													    )
-													    );
-				//pair_counter++;
-			}
+		} else {
+
+			// Register every src/tgt pair, including each image to itself, averaging the transforms as they complete.
+			// Pairs are ordered by the later of their two images, i.e. in the order their projections become ready.
+			int[][] pairs = new int[image_count * image_count][];
+			int pair = 0;
+			for (int last = 0; last < image_count; last++) {
+				for (int other = 0; other <= last; other++) {
 
-			// Calculate average transformation
-			mean_ot[src] = OrthogonalTransform.computeAverageTransform(temp_ot);
+					pairs[pair++] = new int[] {last, other};
+					if (other != last) pairs[pair++] = new int[] {other, last};
+				}
+			}
+			TransformAccumulator[] accumulators = createAccumulators(image_count, image_count);
+			registerPairs(guide_projections, guide_projections, pairs, registration_parameters, false, null, accumulators, getLargestProjection());
+			mean_ot = getMeans(accumulators);
 		}
                 if (progressWindow != null) progressWindow.clearProgress();
 
 		this.ot = mean_ot;
 	}
+
+	private OrthogonalTransform[] registerToReferences(List<Future<ImagePlus>> guide_projections) {
+
+		/*
+		 *  Register each guide projection to the projection of every reference, then average over the references.
+		 *  The references are projected in the same plane as the sources, alongside them.
+		 */
+
+		int image_count = guide_projections.size();
+		int reference_count = reference_stacks.length;
+		IJ.log("Projecting " + reference_count + " reference images");
+		List<Future<ImagePlus>> reference_projections = new ArrayList<Future<ImagePlus>>(reference_count);
+		long largest_projection = getLargestProjection();
+		for (int i = 0; i < reference_count; i++) {
+
+			final int index = i;
+			reference_projections.add(WorkerPool.getPool().submit(new Callable<ImagePlus>() {
+
+				public ImagePlus call() {
+
+					return new PermutedVolume(reference_stacks[index], reference_rotations).getAverageProjection();
+				}
+			}));
+			int[] dimensions = PermutedVolume.getDimensions(reference_stacks[i], reference_rotations);
+			largest_projection = Math.max(largest_projection, (long)dimensions[0] * (long)dimensions[1]);
+		}
+
+		int[][] pairs = new int[image_count * reference_count][];
+		for (int src = 0, pair = 0; src < image_count; src++) {
+			for (int ref = 0; ref < reference_count; ref++) {
+
+				pairs[pair++] = new int[] {src, ref};
+			}
+		}
+		TransformAccumulator[] accumulators = createAccumulators(image_count, reference_count);
+		ProgressWindow pair_window = progressWindow;
+		progressWindow = null;		// Its grid has a cell per pair of sources, not per reference
+		try {
+
+			registerPairs(guide_projections, reference_projections, pairs, registration_parameters, false, null, accumulators, largest_projection);
+
+		} finally {
+
+			progressWindow = pair_window;
+		}
+
+		return getMeans(accumulators);
+	}
+
+	private OrthogonalTransform[] registerToTemplate(ImagePlus[] guide_projections) {
+
+		/*
+		 *  Register each guide projection to the mean of the group, rebuilding the mean from the warped projections
+		 *  after each round, so that the number of registrations grows linearly with the number of images.
+		 */
+
+		int image_count = guide_projections.length;
+		int[][] pairs = new int[image_count][];
+		for (int src = 0; src < image_count; src++) {
+
+			pairs[src] = new int[] {src, 0};
+		}
+
+		// Start from the mean of the unregistered projections
+		ImagePlus template = getMeanProjection(guide_projections, null);
+		OrthogonalTransform[] template_ot = new OrthogonalTransform[image_count];
+		for (int round = 0; round < template_rounds; round++) {
+
+			IJ.log("Template round " + (round+1) + " of " + template_rounds);
+			OrthogonalTransform[][] pair_ot = registerPairs(guide_projections, new ImagePlus[] {template}, pairs, registration_parameters, false);
+			for (int src = 0; src < image_count; src++) {
+
+				template_ot[src] = pair_ot[src][0];
+			}
+
+			// Rebuild the template from the warped projections, unless this was the last round
+			if (round < template_rounds - 1) {
+
+				template = getMeanProjection(guide_projections, template_ot);
+			}
+		}
+
+		return template_ot;
+	}
+
+	private OrthogonalTransform[] registerToNearestNeighbours(ImagePlus[] guide_projections) {
+
+		/*
+		 *  Register each guide projection only to the k others it overlaps best, then average over those k transforms.
+		 */
+
+		int image_count = guide_projections.length;
+		int k = Math.min(neighbour_count, image_count - 1);
+		if (k < 1) {
+
+			// There are no other images, so register the image to itself
+			OrthogonalTransform[][] pair_ot = registerPairs(guide_projections, guide_projections, new int[][] {{0, 0}}, registration_parameters, false);
+			return new OrthogonalTransform[] {pair_ot[0][0]};
+		}
+
+		// Measure the similarity of each pair of projections
+		IJ.log("Measuring overlap of guide projections...");
+		double[][] dice = new double[image_count][image_count];
+		for (int src = 0; src < image_count; src++) {
+			for (int tgt = src + 1; tgt < image_count; tgt++) {
+
+				dice[src][tgt] = getDice(guide_projections[src].getProcessor(), guide_projections[tgt].getProcessor());
+				dice[tgt][src] = dice[src][tgt];
+			}
+		}
+
+		// Choose the k most similar peers of each image, breaking ties by index
+		boolean[][] neighbour = new boolean[image_count][image_count];
+		for (int src = 0; src < image_count; src++) {
+
+			for (int n = 0; n < k; n++) {
+
+				int best = -1;
+				for (int tgt = 0; tgt < image_count; tgt++) {
+
+					if (tgt == src || neighbour[src][tgt]) continue;
+					if (best < 0 || dice[src][tgt] > dice[src][best]) best = tgt;
+				}
+				neighbour[src][best] = true;
+			}
+		}
+
+		// Average over the k neighbours of each image in target order, so each pair is given its rank among the neighbours
+		int[][] pairs = new int[image_count * k][];
+		for (int src = 0, pair = 0; src < image_count; src++) {
+			for (int tgt = 0, n = 0; tgt < image_count; tgt++) {
+
+				if (neighbour[src][tgt]) pairs[pair++] = new int[] {src, tgt, n++};
+			}
+		}
+		TransformAccumulator[] accumulators = createAccumulators(image_count, k);
+		registerPairs(guide_projections, guide_projections, pairs, registration_parameters, false, null, accumulators);
+
+		return getMeans(accumulators);
+	}
+
+	static double getDice(ImageProcessor a, ImageProcessor b) {
+
+		/*
+		 *  Calculate the Dice coefficient of the non-zero pixels of two images aligned at the origin.
+		 */
+
+		long count_a = 0, count_b = 0, count_both = 0;
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+
+				if (a.getPixelValue(x, y) > 0) {
+
+					count_a++;
+					if (x < b.getWidth() && y < b.getHeight() && b.getPixelValue(x, y) > 0) count_both++;
+				}
+			}
+		}
+		for (int y = 0; y < b.getHeight(); y++) {
+			for (int x = 0; x < b.getWidth(); x++) {
+
+				if (b.getPixelValue(x, y) > 0) count_b++;
+			}
+		}
+		if (count_a + count_b == 0) return 0.0;
+
+		return (2.0 * count_both) / (count_a + count_b);
+	}
+
+	static private ImagePlus getMeanProjection(ImagePlus[] projections, OrthogonalTransform[] transforms) {
+
+		/*
+		 *  Calculate the mean of the supplied projections, each warped by its transform if transforms is not null.
+		 *  Projections are aligned at the origin on a canvas of the largest dimensions.
+		 */
+
+		int width = 0, height = 0;
+		for (int i = 0; i < projections.length; i++) {
+
+			if (projections[i].getWidth() > width) width = projections[i].getWidth();
+			if (projections[i].getHeight() > height) height = projections[i].getHeight();
+		}
+
+		float[] mean = new float[width * height];
+		ImagePlus canvas = new ImagePlus("Template", new FloatProcessor(width, height));
+		for (int i = 0; i < projections.length; i++) {
+
+			ImageProcessor ip;
+			if (transforms == null) {
+
+				ip = projections[i].getProcessor();
+
+			} else {
+
+				// Warp the projection onto the template canvas
+				ImagePlus warped = new ImagePlus("Warped", projections[i].getProcessor().duplicate());
+				MiscTools.applyTransformationToSourceMT(warped, canvas, transforms[i].getIntervals(), transforms[i].getCoefficientsX(), transforms[i].getCoefficientsY());
+				ip = warped.getProcessor();
+			}
+			for (int y = 0; y < ip.getHeight(); y++) {
+				for (int x = 0; x < ip.getWidth(); x++) {
+
+					mean[(y * width) + x] += ip.getPixelValue(x, y) / projections.length;
+				}
+			}
+		}
+
+		return new ImagePlus("Template", new FloatProcessor(width, height, mean, null));
+	}
+
+	private OrthogonalTransform[] registerSymmetricPairs(List<Future<ImagePlus>> guide_projections) {
+
+		/*
+		 *  Register each unordered pair once, taking the mirrored pair from the inverse deformation of the same
+		 *  bidirectional registration, and use the identity for each image registered to itself.
+		 */
+
+		int image_count = guide_projections.size();
+		if (image_count < 2) {
+
+			// There is no other registration to take the number of intervals from, so register the image to itself
+			OrthogonalTransform[][] pair_ot = new OrthogonalTransform[1][1];
+			registerPairs(guide_projections, guide_projections, new int[][] {{0, 0}}, registration_parameters, false, pair_ot, null, getLargestProjection());
+			return new OrthogonalTransform[] {pair_ot[0][0]};
+		}
+
+		// Order pairs by the later of their two images, i.e. in the order their projections become ready
+		int[][] pairs = new int[(image_count * (image_count - 1)) / 2][];
+		int pair = 0;
+		for (int tgt = 1; tgt < image_count; tgt++) {
+			for (int src = 0; src < tgt; src++) {
+
+				pairs[pair++] = new int[] {src, tgt};
+			}
+		}
+		// Use the identity for self-pairs, sampled on the same B-spline grid as the other pairs once the first completes.
+		// Each projection has the dimensions of its volume's slices.
+		TransformAccumulator[] accumulators = createAccumulators(image_count, image_count);
+		for (int src = 0; src < image_count; src++) {
+
+			int[] dimensions = getSourceDimensions(src);
+			accumulators[src].addIdentity(src, dimensions[0], dimensions[1]);
+		}
+		registerPairs(guide_projections, guide_projections, pairs, symmetric_parameters, true, null, accumulators, getLargestProjection());
+
+		return getMeans(accumulators);
+	}
+
+	static private TransformAccumulator[] createAccumulators(int image_count, int transforms_per_image) {
+
+		TransformAccumulator[] accumulators = new TransformAccumulator[image_count];
+		for (int src = 0; src < image_count; src++) {
+
+			accumulators[src] = new TransformAccumulator(transforms_per_image);
+		}
+
+		return accumulators;
+	}
+
+	static private OrthogonalTransform[] getMeans(TransformAccumulator[] accumulators) {
+
+		OrthogonalTransform[] mean_ot = new OrthogonalTransform[accumulators.length];
+		for (int src = 0; src < accumulators.length; src++) {
+
+			mean_ot[src] = accumulators[src].getMean();
+		}
+
+		return mean_ot;
+	}
+
+	private OrthogonalTransform[][] registerPairs(ImagePlus[] sources, ImagePlus[] targets, int[][] pairs, Param parameters, boolean mirror) {
+
+		// Keep every pairwise transform
+		OrthogonalTransform[][] pair_ot = new OrthogonalTransform[sources.length][targets.length];
+		registerPairs(sources, targets, pairs, parameters, mirror, pair_ot, null);
+
+		return pair_ot;
+	}
+
+	private void registerPairs(ImagePlus[] sources, ImagePlus[] targets, int[][] pairs, Param parameters, boolean mirror,
+				   OrthogonalTransform[][] pair_ot, TransformAccumulator[] accumulators) {
+
+		registerPairs(getReady(sources), getReady(targets), pairs, parameters, mirror, pair_ot, accumulators, getLargestProjection(sources, targets));
+	}
+
+	private void registerPairs(final List<Future<ImagePlus>> sources, final List<Future<ImagePlus>> targets, int[][] pairs, final Param parameters,
+				   final boolean mirror, final OrthogonalTransform[][] pair_ot, final TransformAccumulator[] accumulators, long largest_projection) {
+
+		/*
+		 *  Schedule the given src/tgt pairs on a bounded pool of workers. If pair_ot is not null, the direct transform of each
+		 *  pair is stored in [src][tgt] and, if mirror is set, the inverse transform is stored in [tgt][src]. If accumulators
+		 *  is not null, the direct transform is instead folded into accumulators[src] as soon as it completes, at the index
+		 *  given by the optional third element of the pair (tgt by default), and the inverse into accumulators[tgt] at src.
+		 *  Each pair waits only for its own two projections, so pairs can be registered while later images are still being
+		 *  projected.
+		 */
+
+		final int pair_count = pairs.length;
+		final AtomicInteger pairs_done = new AtomicInteger(0);
+		int worker_count = getWorkerCount(largest_projection, pair_count);
+		String status = "Calculating " + pair_count + " transforms on " + worker_count + " threads...";
+		IJ.showStatus(status);
+                if (progressWindow != null) progressWindow.showStatus(1, status);
+                if (progressWindow != null) progressWindow.resetProgress();
+		IJ.log("\n-----\n" + status + "\n-----\n");
+
+		ExecutorService pool = Executors.newFixedThreadPool(worker_count);
+		List<Future<?>> futures = new ArrayList<Future<?>>(pair_count);
+		try {
+
+			for (int pair = 0; pair < pair_count; pair++) {
+
+				final int src = pairs[pair][0];
+				final int tgt = pairs[pair][1];
+				final int index = (pairs[pair].length > 2) ? pairs[pair][2] : tgt;
+				futures.add(pool.submit(new Runnable() {
+
+					public void run() {
+
+						// Register the current src/tgt pair, once both projections are ready
+						ImagePlus target = await(targets.get(tgt));
+						ImagePlus source = await(sources.get(src));
+						Transformation transform = bUnwarpJ_.computeTransformationBatch(target,		// Target image plus
+														 source,	// Souce image plus
+														 null,		// Target Mask image processor
+														 null,		// Source Mask image processor
+														 parameters	// Registration parameters
+														 );
+						if (pair_ot != null) {
+
+							pair_ot[src][tgt] = new OrthogonalTransform(transform);
+							if (mirror) pair_ot[tgt][src] = new OrthogonalTransform(transform, true);
+						}
+						if (accumulators != null) {
+
+							accumulators[src].add(index, new OrthogonalTransform(transform));
+							if (mirror) accumulators[tgt].add(src, new OrthogonalTransform(transform, true));
+						}
+
+						// Update progress
+						int done = pairs_done.incrementAndGet();
+						IJ.showProgress(done, pair_count);
+						if (progressWindow != null) progressWindow.markProgress(src, tgt);
+						if (progressWindow != null && mirror) progressWindow.markProgress(tgt, src);
+						if (progressWindow != null) progressWindow.showProgress(1, done, pair_count);
+					}
+				}));
+			}
+
+			// Wait until every pair has been registered
+			for (Future<?> future : futures) {
+
+				future.get();
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Registration was interrupted", e);
+
+		} catch (ExecutionException e) {
+
+			IJ.log("Pairwise registration failed: " + e.getCause());
+			throw new RuntimeException("Pairwise registration failed", e.getCause());
+
+		} finally {
+
+			pool.shutdownNow();
+		}
+	}
+
+	private List<Future<ImagePlus>> submitProjections() {
+
+		// Submit the average projection of each source image to the shared pool, without waiting for any of them
+		List<Future<ImagePlus>> projections = new ArrayList<Future<ImagePlus>>(source_images.length);
+		for (int i = 0; i < source_images.length; i++) {
+
+			final int index = i;
+			projections.add(WorkerPool.getPool().submit(new Callable<ImagePlus>() {
+
+				public ImagePlus call() {
+
+					return getSource(index).getAverageProjection();
+				}
+			}));
+		}
+
+		return projections;
+	}
+
+	private PermutedVolume getSource(int i) {
+
+		// Views of source_stacks are created afresh, so that they can be released as soon as they have been used
+		if (source_images[i] != null) return source_images[i];
+
+		return new PermutedVolume(source_stacks[i], source_rotations[i]);
+	}
+
+	private int[] getSourceDimensions(int i) {
+
+		if (source_images[i] != null) return new int[] {source_images[i].getWidth(), source_images[i].getHeight(), source_images[i].getSize()};
+
+		return PermutedVolume.getDimensions(source_stacks[i], source_rotations[i]);
+	}
+
+	private ImagePlus park(int i, ImagePlus image) {
+
+		// Move a transformed image to the volume store, keeping it on the heap if the store cannot be written
+		try {
+
+			volume_store.set(i, image);
+			return volume_store.get(i);
+
+		} catch (IOException e) {
+
+			IJ.log("Could not write transformed image " + (i+1) + " to the volume store: " + e.getMessage());
+			return image;
+		}
+	}
+
+	static private List<Future<ImagePlus>> getReady(ImagePlus[] images) {
+
+		// Wrap images that already exist as completed futures
+		List<Future<ImagePlus>> futures = new ArrayList<Future<ImagePlus>>(images.length);
+		for (int i = 0; i < images.length; i++) {
+
+			FutureTask<ImagePlus> future = new FutureTask<ImagePlus>(new Runnable() { public void run() {} }, images[i]);
+			future.run();
+			futures.add(future);
+		}
+
+		return futures;
+	}
+
+	static private ImagePlus[] getAll(List<Future<ImagePlus>> futures) {
+
+		ImagePlus[] images = new ImagePlus[futures.size()];
+		for (int i = 0; i < images.length; i++) {
+
+			images[i] = await(futures.get(i));
+		}
+
+		return images;
+	}
+
+	static private ImagePlus await(Future<ImagePlus> future) {
+
+		try {
+
+			return future.get();
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Projection was interrupted", e);
+
+		} catch (ExecutionException e) {
+
+			throw new RuntimeException("Projection failed", e.getCause());
+		}
+	}
+
+	private long getLargestProjection() {
+
+		// Each projection has the dimensions of its volume's slices
+		long largest_projection = 1;
+		for (int i = 0; i < source_images.length; i++) {
+
+			int[] dimensions = getSourceDimensions(i);
+			long pixels = (long)dimensions[0] * (long)dimensions[1];
+			if (pixels > largest_projection) largest_projection = pixels;
+		}
+
+		return largest_projection;
+	}
+
+	static private long getLargestProjection(ImagePlus[] sources, ImagePlus[] targets) {
+
+		long largest_projection = 1;
+		for (int i = 0; i < sources.length + targets.length; i++) {
+
+			ImagePlus projection = (i < sources.length) ? sources[i] : targets[i - sources.length];
+			long pixels = (long)projection.getWidth() * (long)projection.getHeight();
+			if (pixels > largest_projection) largest_projection = pixels;
+		}
+
+		return largest_projection;
+	}
+
+	private int getWorkerCount(long largest_projection, int pair_count) {
+
+		/*
+		 *  Size the worker pool by the number of processors, limited by how many registrations of the largest guide
+		 *  projection fit in the memory budget.
+		 */
+
+		int worker_count = (thread_count > 0) ? thread_count : Runtime.getRuntime().availableProcessors();
+
+		long budget = memory_budget;
+		if (budget <= 0) budget = (IJ.maxMemory() - IJ.currentMemory()) / 2;
+		long memory_limit = budget / (largest_projection * REGISTRATION_BYTES_PER_PIXEL);
+		if (memory_limit < worker_count) worker_count = (int)memory_limit;
+		if (pair_count < worker_count) worker_count = pair_count;
+
+		return Math.max(worker_count, 1);
+	}
 }
@@ -0,0 +1,217 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.util.ThreadUtil;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A class for reslicing 3D (XYZ) image stacks into the next orthogonal plane.
+ *
+ * Reslicing maps y to x, z to y and x to z, so that reslicing the same stack three times returns
+ * it to the original orientation. Rather than copying one voxel at a time, the backing byte, short,
+ * float or RGB pixel arrays are transposed in tiles, and the output slices are shared between threads.
+ *
+ */
+public class StackReslicer {
+
+	// Number of output slices (i.e. input columns) transposed together in a single tile
+	static final int TILE_SIZE = 64;
+
+	/**
+	 * Reslices the supplied image using all available processors.
+	 *
+	 * @param input_image The image stack to be resliced.
+	 * @return A new ImagePlus containing the resliced stack.
+	 */
+	static public ImagePlus reslice(ImagePlus input_image) {
+
+		return reslice(input_image, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Reslices the supplied image so that y becomes x, z becomes y and x becomes z.
+	 *
+	 * @param input_image The image stack to be resliced.
+	 * @param thread_count The maximum number of threads to use.
+	 * @return A new ImagePlus containing the resliced stack, with calibration adjusted to match.
+	 */
+	static public ImagePlus reslice(ImagePlus input_image, int thread_count) {
+
+		ImageStack output_stack = reslice(input_image.getStack(), thread_count);
+
+		// Put output_stack into an ImagePlus
+		ImagePlus output_image = new ImagePlus("Reslice of " + input_image.getTitle(), output_stack);
+
+		// Adjust calibration of output_image
+		output_image.getCalibration().pixelWidth  = input_image.getCalibration().pixelHeight;
+		output_image.getCalibration().pixelHeight = input_image.getCalibration().pixelDepth;
+		output_image.getCalibration().pixelDepth  = input_image.getCalibration().pixelWidth;
+
+		return output_image;
+	}
+
+	/**
+	 * Reslices the supplied stack so that y becomes x, z becomes y and x becomes z.
+	 *
+	 * @param input_stack The stack to be resliced.
+	 * @param thread_count The maximum number of threads to use.
+	 * @return A new ImageStack of width = input height, height = input depth and depth = input width.
+	 */
+	static public ImageStack reslice(ImageStack input_stack, int thread_count) {
+
+		final int width  = input_stack.getWidth();
+		final int height = input_stack.getHeight();
+		final int depth  = input_stack.getSize();
+
+		// Grab the input pixel arrays once, rather than once per voxel
+		final Object[] input_pixels = new Object[depth];
+		for (int z = 0; z < depth; z++) {
+
+			input_pixels[z] = input_stack.getPixels(z+1);
+		}
+
+		// Define a stack to contain the resliced output: y becomes x; z becomes y; x becomes z
+		ImageStack output_stack = new ImageStack(height, depth);
+		final Object[] output_pixels = new Object[width];
+		for (int x = 0; x < width; x++) {
+
+			output_pixels[x] = createPixels(input_pixels[0], height * depth);
+			output_stack.addSlice(null, output_pixels[x]);
+		}
+
+		// Share tiles of output slices between threads
+		final int tile_count = (width + TILE_SIZE - 1) / TILE_SIZE;
+		if (thread_count > tile_count) thread_count = tile_count;
+		if (thread_count < 1) thread_count = 1;
+		final AtomicInteger next_tile = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray(thread_count);
+		for (int i = 0; i < thread_count; i++) {
+
+			threads[i] = new Thread() {
+
+				{ setPriority(Thread.NORM_PRIORITY); }
+
+				public void run() {
+
+					for (int tile = next_tile.getAndIncrement(); tile < tile_count; tile = next_tile.getAndIncrement()) {
+
+						int x_start = tile * TILE_SIZE;
+						int x_stop  = Math.min(x_start + TILE_SIZE, width);
+						transposeTile(input_pixels, output_pixels, width, height, depth, x_start, x_stop);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+
+		return output_stack;
+	}
+
+	static Object createPixels(Object template, int length) {
+
+		// Allocate a pixel array of the same type as template
+		if (template instanceof byte[]) {
+
+			return new byte[length];
+
+		} else if (template instanceof short[]) {
+
+			return new short[length];
+
+		} else if (template instanceof float[]) {
+
+			return new float[length];
+
+		} else if (template instanceof int[]) {
+
+			return new int[length];
+		}
+		throw new IllegalArgumentException("Unsupported pixel type: " + template.getClass().getName());
+	}
+
+	static private void transposeTile(Object[] input_pixels, Object[] output_pixels, int width, int height, int depth, int x_start, int x_stop) {
+
+		/*
+		 * Copies input columns x_start to x_stop into output slices x_start to x_stop. Each input row is
+		 * read as a contiguous run of the tile width, while each output slice is written sequentially.
+		 */
+
+		for (int z = 0; z < depth; z++) {
+
+			Object in = input_pixels[z];
+			int output_offset = z * height;
+
+			if (in instanceof byte[]) {
+
+				byte[] input = (byte[])in;
+				for (int y = 0; y < height; y++) {
+
+					int input_offset = y * width;
+					for (int x = x_start; x < x_stop; x++) {
+
+						((byte[])output_pixels[x])[output_offset + y] = input[input_offset + x];
+					}
+				}
+
+			} else if (in instanceof short[]) {
+
+				short[] input = (short[])in;
+				for (int y = 0; y < height; y++) {
+
+					int input_offset = y * width;
+					for (int x = x_start; x < x_stop; x++) {
+
+						((short[])output_pixels[x])[output_offset + y] = input[input_offset + x];
+					}
+				}
+
+			} else if (in instanceof float[]) {
+
+				float[] input = (float[])in;
+				for (int y = 0; y < height; y++) {
+
+					int input_offset = y * width;
+					for (int x = x_start; x < x_stop; x++) {
+
+						((float[])output_pixels[x])[output_offset + y] = input[input_offset + x];
+					}
+				}
+
+			} else {
+
+				int[] input = (int[])in;
+				for (int y = 0; y < height; y++) {
+
+					int input_offset = y * width;
+					for (int x = x_start; x < x_stop; x++) {
+
+						((int[])output_pixels[x])[output_offset + y] = input[input_offset + x];
+					}
+				}
+			}
+		}
+	}
+}
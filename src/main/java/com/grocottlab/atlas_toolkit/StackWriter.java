@@ -0,0 +1,368 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Saves image stacks in the background, so that results are written while the next are still being made.
+ *
+ * Stacks are queued with save() and written by a small pool of workers, either as ImageJ saves them or as
+ * TIFF stacks with each slice deflate-compressed. Binary labels and vote counts are mostly runs of a few
+ * values, so compression cuts their size, and the time spent writing them, many times over. ImageJ does
+ * not write compressed TIFF itself, but opens it like any other. close() waits for every queued stack.
+ *
+ */
+public class StackWriter {
+
+	/**
+	 * NONE saves each stack with IJ.save(). DEFLATE saves each as a TIFF stack with every slice deflate-compressed,
+	 * except RGB stacks, which are saved uncompressed.
+	 */
+	public enum Compression {NONE, DEFLATE}
+
+	// TIFF tags
+	static private final int IMAGE_WIDTH = 256;
+	static private final int IMAGE_LENGTH = 257;
+	static private final int BITS_PER_SAMPLE = 258;
+	static private final int COMPRESSION = 259;
+	static private final int PHOTO_INTERPRETATION = 262;
+	static private final int IMAGE_DESCRIPTION = 270;
+	static private final int STRIP_OFFSETS = 273;
+	static private final int SAMPLES_PER_PIXEL = 277;
+	static private final int ROWS_PER_STRIP = 278;
+	static private final int STRIP_BYTE_COUNT = 279;
+	static private final int X_RESOLUTION = 282;
+	static private final int Y_RESOLUTION = 283;
+	static private final int SAMPLE_FORMAT = 339;
+
+	// TIFF field types
+	static private final int ASCII = 2;
+	static private final int SHORT = 3;
+	static private final int LONG = 4;
+	static private final int RATIONAL = 5;
+
+	static private final int DEFLATE_COMPRESSION = 8;
+
+	private Compression compression;
+	private ExecutorService pool;
+	private List<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+	private List<String> pending_paths = new ArrayList<String>();
+
+	/**
+	 * @param compression The Compression of the saved stacks.
+	 */
+	public StackWriter(Compression compression) {
+
+		this(compression, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+	}
+
+	/**
+	 * @param compression The Compression of the saved stacks.
+	 * @param thread_count The number of stacks to write at once.
+	 */
+	public StackWriter(Compression compression, int thread_count) {
+
+		this.compression = compression;
+		pool = Executors.newFixedThreadPool(Math.max(thread_count, 1));
+	}
+
+	/**
+	 * Queues a stack to be saved. The stack must not be changed until close() has returned, but may be shown.
+	 *
+	 * @param image The stack to save.
+	 * @param path The path of the file. With DEFLATE compression, ".tif" is added if it has no TIFF extension.
+	 * @return The path the stack will be saved to.
+	 */
+	public synchronized String save(final ImagePlus image, String path) {
+
+		final String output_path = (compression == Compression.DEFLATE && !isTiff(path)) ? path + ".tif" : path;
+		pending_paths.add(output_path);
+		pending.add(pool.submit(new Callable<Boolean>() {
+
+			public Boolean call() throws IOException {
+
+				if (compression == Compression.DEFLATE && image.getBitDepth() != 24) {
+
+					saveAsDeflateTiff(image, output_path);
+					return true;
+				}
+
+				IJ.save(image, output_path);
+				return new File(output_path).exists();
+			}
+		}));
+
+		return output_path;
+	}
+
+	/**
+	 * Waits until every queued stack has been saved, then stops the workers.
+	 *
+	 * @return True if every stack was saved. Each failure is logged.
+	 */
+	public synchronized boolean close() {
+
+		boolean saved = true;
+		try {
+
+			for (int i = 0; i < pending.size(); i++) {
+
+				try {
+
+					if (!pending.get(i).get()) {
+
+						IJ.log("Could not save " + pending_paths.get(i));
+						saved = false;
+					}
+
+				} catch (ExecutionException e) {
+
+					IJ.log("Could not save " + pending_paths.get(i) + ": " + e.getCause().getMessage());
+					saved = false;
+				}
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			IJ.log("Interrupted while saving stacks");
+			saved = false;
+
+		} finally {
+
+			pool.shutdownNow();
+			pending.clear();
+			pending_paths.clear();
+		}
+
+		return saved;
+	}
+
+	/**
+	 * Saves an 8, 16 or 32-bit stack as a TIFF file with one deflate-compressed strip per slice, which ImageJ opens as a stack.
+	 *
+	 * @param image The stack to save.
+	 * @param path The path of the file.
+	 * @throws IOException If the file cannot be written, or would exceed the 4 GB limit of TIFF.
+	 */
+	static public void saveAsDeflateTiff(ImagePlus image, String path) throws IOException {
+
+		/*
+		 *  Write each slice's compressed strip followed by its IFD, then link the IFD into the chain, so that slices are
+		 *  written one at a time as they are read.
+		 */
+
+		ImageStack stack = image.getStack();
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int depth = stack.getSize();
+		int bit_depth = image.getBitDepth();
+		if (bit_depth == 24) throw new IOException("RGB stacks cannot be saved with deflate compression");
+		int bytes_per_pixel = bit_depth / 8;
+		byte[] description = getDescription(image, depth);
+		Calibration calibration = image.getCalibration();
+		boolean scaled = calibration != null && calibration.scaled();
+
+		File file = new File(path);
+		File temp_file = new File(path + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp_file, "rw");
+		try {
+
+			raf.setLength(0);
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(0);
+			raf.write(header.array());
+			long link_position = 4;		// Where the offset of the next IFD is to be written
+
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			ByteBuffer slice_bytes = ByteBuffer.allocate(width * height * bytes_per_pixel).order(ByteOrder.LITTLE_ENDIAN);
+			ByteArrayOutputStream strip = new ByteArrayOutputStream();
+			byte[] chunk = new byte[65536];
+			try {
+
+				for (int slice = 1; slice <= depth; slice++) {
+
+					// Compress the slice
+					slice_bytes.clear();
+					putPixels(slice_bytes, stack.getPixels(slice));
+					deflater.reset();
+					deflater.setInput(slice_bytes.array());
+					deflater.finish();
+					strip.reset();
+					while (!deflater.finished()) {
+
+						int count = deflater.deflate(chunk);
+						strip.write(chunk, 0, count);
+					}
+					long strip_offset = raf.length();
+					raf.seek(strip_offset);
+					raf.write(strip.toByteArray());
+
+					// Describe it, with the calibration in the first IFD only
+					boolean first = (slice == 1);
+					int entry_count = 10 + (first ? 1 : 0) + ((first && scaled) ? 2 : 0);
+					long ifd_offset = raf.length();
+					if (ifd_offset % 2 != 0) ifd_offset++;	// IFDs start on a word boundary
+					long extra_offset = ifd_offset + 2 + (entry_count * 12) + 4;
+					if (extra_offset + 16 + description.length > 0xFFFFFFFFL) throw new IOException(path + " would exceed the 4 GB limit of TIFF");
+					ByteBuffer ifd = ByteBuffer.allocate((int)(extra_offset - ifd_offset) + 16 + description.length).order(ByteOrder.LITTLE_ENDIAN);
+					ifd.putShort((short)entry_count);
+					putEntry(ifd, IMAGE_WIDTH, LONG, 1, width);
+					putEntry(ifd, IMAGE_LENGTH, LONG, 1, height);
+					putEntry(ifd, BITS_PER_SAMPLE, SHORT, 1, bit_depth);
+					putEntry(ifd, COMPRESSION, SHORT, 1, DEFLATE_COMPRESSION);
+					putEntry(ifd, PHOTO_INTERPRETATION, SHORT, 1, 1);	// Black is zero
+					if (first) putEntry(ifd, IMAGE_DESCRIPTION, ASCII, description.length, extra_offset + (scaled ? 16 : 0));
+					putEntry(ifd, STRIP_OFFSETS, LONG, 1, strip_offset);
+					putEntry(ifd, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+					putEntry(ifd, ROWS_PER_STRIP, LONG, 1, height);
+					putEntry(ifd, STRIP_BYTE_COUNT, LONG, 1, strip.size());
+					if (first && scaled) {
+
+						putEntry(ifd, X_RESOLUTION, RATIONAL, 1, extra_offset);
+						putEntry(ifd, Y_RESOLUTION, RATIONAL, 1, extra_offset + 8);
+					}
+					putEntry(ifd, SAMPLE_FORMAT, SHORT, 1, (bit_depth == 32) ? 3 : 1);	// 3 = floating point, 1 = unsigned integer
+					ifd.putInt(0);		// No next IFD, until one is linked
+					if (first) {
+
+						if (scaled) {
+
+							putResolution(ifd, calibration.pixelWidth);
+							putResolution(ifd, calibration.pixelHeight);
+						}
+						ifd.put(description);
+					}
+					raf.seek(ifd_offset);
+					raf.write(ifd.array(), 0, ifd.position());
+
+					// Link the IFD to the previous one
+					ByteBuffer link = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+					link.putInt((int)ifd_offset);
+					raf.seek(link_position);
+					raf.write(link.array());
+					link_position = ifd_offset + 2 + (entry_count * 12);
+					IJ.showProgress(slice, depth);
+				}
+
+			} finally {
+
+				deflater.end();
+			}
+
+		} finally {
+
+			raf.close();
+		}
+
+		// Swap the finished file into place
+		if (file.exists() && !file.delete()) throw new IOException("Could not replace " + path);
+		if (!temp_file.renameTo(file)) throw new IOException("Could not rename " + temp_file.getPath() + " to " + file.getName());
+	}
+
+	static private byte[] getDescription(ImagePlus image, int depth) {
+
+		// ImageJ's description of the stack, which records the units and slice spacing. The number of images is left out,
+		// as ImageJ would take it to mean the slices are stored uncompressed and contiguously.
+		StringBuilder description = new StringBuilder("ImageJ=" + IJ.getVersion() + "\n");
+		if (depth > 1) description.append("slices=" + depth + "\n");
+		Calibration calibration = image.getCalibration();
+		if (calibration != null && calibration.scaled()) {
+
+			description.append("unit=" + calibration.getUnit() + "\n");
+			if (depth > 1) description.append("spacing=" + calibration.pixelDepth + "\n");
+		}
+		description.append('\0');
+		byte[] bytes = new byte[description.length()];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte)description.charAt(i);
+
+		return bytes;
+	}
+
+	static private void putEntry(ByteBuffer ifd, int tag, int type, int count, long value) {
+
+		ifd.putShort((short)tag);
+		ifd.putShort((short)type);
+		ifd.putInt(count);
+		if (type == SHORT && count == 1) {
+
+			// Short values are left-justified in the value field
+			ifd.putShort((short)value);
+			ifd.putShort((short)0);
+
+		} else {
+
+			ifd.putInt((int)value);
+		}
+	}
+
+	static private void putResolution(ByteBuffer ifd, double pixel_size) {
+
+		// Pixels per unit, as a rational, as ImageJ writes it
+		double resolution = 1.0 / pixel_size;
+		double scale = (resolution > 1000.0) ? 1000.0 : 1000000.0;
+		ifd.putInt((int)(resolution * scale));
+		ifd.putInt((int)scale);
+	}
+
+	static private void putPixels(ByteBuffer buffer, Object pixels) {
+
+		if (pixels instanceof byte[]) {
+
+			buffer.put((byte[])pixels);
+
+		} else if (pixels instanceof short[]) {
+
+			buffer.asShortBuffer().put((short[])pixels);
+
+		} else {
+
+			buffer.asFloatBuffer().put((float[])pixels);
+		}
+	}
+
+	static private boolean isTiff(String path) {
+
+		String lower_case = path.toLowerCase();
+
+		return lower_case.endsWith(".tif") || lower_case.endsWith(".tiff");
+	}
+}
@@ -0,0 +1,183 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the mean of a fixed number of OrthogonalTransform objects as they are produced.
+ *
+ * Each transform is added with its index in the group and is folded into running sums of the X and
+ * Y coefficients, after which it can be discarded. The sums are always built in index order, so the
+ * mean is identical to that of OrthogonalTransform.computeAverageTransform, bit for bit, whatever the
+ * order in which transforms are added. A transform that arrives ahead of its turn is held only until
+ * every transform before it has been folded in. Pairs are scheduled in index order, so only the few
+ * transforms that overtake one still being registered are ever held, rather than the whole group.
+ * Transforms may be added from several threads at once.
+ *
+ */
+public class TransformAccumulator {
+
+	private int count;
+	private int next_index = 0;		// Index of the next transform to fold into the sums
+	private Map<Integer, OrthogonalTransform> waiting = new HashMap<Integer, OrthogonalTransform>();	// Transforms added ahead of their turn
+	private boolean[] added;
+	private double[][] x_total = null;
+	private double[][] y_total = null;
+	private int intervals = -1;
+
+	// An identity transform that cannot be created until the number of intervals is known
+	private int identity_index = -1;
+	private int identity_width;
+	private int identity_height;
+
+	/**
+	 * @param count The number of transforms to be averaged.
+	 */
+	public TransformAccumulator(int count) {
+
+		if (count < 1) throw new IllegalArgumentException("At least one transform is needed to calculate a mean");
+		this.count = count;
+		added = new boolean[count];
+	}
+
+	/**
+	 * Adds a transform to the mean.
+	 *
+	 * @param index The position of the transform in the group, from 0 to count - 1.
+	 * @param ot The transform. All transforms must share the same number of intervals.
+	 */
+	public synchronized void add(int index, OrthogonalTransform ot) {
+
+		if (index < 0 || index >= count) throw new IllegalArgumentException("Transform index " + index + " is out of range");
+		if (added[index]) throw new IllegalArgumentException("Transform " + index + " has already been added");
+		if (intervals < 0) {
+
+			intervals = ot.getIntervals();
+
+		} else if (ot.getIntervals() != intervals) {
+
+			throw new IllegalArgumentException("Transform " + index + " has " + ot.getIntervals() + " intervals, expected " + intervals);
+		}
+		added[index] = true;
+		waiting.put(index, ot);
+
+		// Create any deferred identity now that the number of intervals is known
+		if (identity_index >= 0) {
+
+			waiting.put(identity_index, OrthogonalTransform.getIdentity(identity_width, identity_height, intervals));
+			identity_index = -1;
+		}
+
+		// Fold in every transform that is now next in line
+		while (waiting.containsKey(next_index)) {
+
+			fold(waiting.remove(next_index));
+			next_index++;
+		}
+	}
+
+	/**
+	 * Adds an identity transform to the mean, sampled on the same B-spline grid as the other transforms.
+	 *
+	 * If no other transform has been added yet, the identity is created once the first one arrives.
+	 *
+	 * @param index The position of the transform in the group, from 0 to count - 1.
+	 * @param width The width of the image to be transformed.
+	 * @param height The height of the image to be transformed.
+	 */
+	public synchronized void addIdentity(int index, int width, int height) {
+
+		if (intervals >= 0) {
+
+			add(index, OrthogonalTransform.getIdentity(width, height, intervals));
+			return;
+		}
+		if (index < 0 || index >= count) throw new IllegalArgumentException("Transform index " + index + " is out of range");
+		if (added[index] || identity_index >= 0) throw new IllegalArgumentException("Transform " + index + " has already been added");
+		added[index] = true;
+		identity_index = index;
+		identity_width = width;
+		identity_height = height;
+	}
+
+	private void fold(OrthogonalTransform ot) {
+
+		double[][] x_coeff = ot.getCoefficientsX();
+		double[][] y_coeff = ot.getCoefficientsY();
+		if (x_total == null) {
+
+			x_total = new double[x_coeff.length][x_coeff[0].length];
+			y_total = new double[y_coeff.length][y_coeff[0].length];
+		}
+		for (int i1 = 0; i1 < x_total.length; i1++) {
+			for (int i2 = 0; i2 < x_total[i1].length; i2++) {
+
+				x_total[i1][i2] = x_total[i1][i2] + x_coeff[i1][i2];
+			}
+		}
+		for (int i1 = 0; i1 < y_total.length; i1++) {
+			for (int i2 = 0; i2 < y_total[i1].length; i2++) {
+
+				y_total[i1][i2] = y_total[i1][i2] + y_coeff[i1][i2];
+			}
+		}
+	}
+
+	/**
+	 * @return True once every transform has been added and folded into the mean.
+	 */
+	public synchronized boolean isComplete() {
+
+		return next_index == count;
+	}
+
+	/**
+	 * Calculates the mean of the accumulated transforms.
+	 *
+	 * @return A single OrthogonalTransform object containing the mean average X and Y coefficients.
+	 * @throws IllegalStateException If some transforms have not yet been added.
+	 */
+	public synchronized OrthogonalTransform getMean() {
+
+		if (!isComplete()) throw new IllegalStateException((count - next_index) + " of " + count + " transforms have not been added");
+
+		double[][] mean_x_coeff = new double[x_total.length][x_total[0].length];
+		for (int i1 = 0; i1 < x_total.length; i1++) {
+			for (int i2 = 0; i2 < x_total[i1].length; i2++) {
+
+				mean_x_coeff[i1][i2] = ( x_total[i1][i2] / (double)count );
+			}
+		}
+		double[][] mean_y_coeff = new double[y_total.length][y_total[0].length];
+		for (int i1 = 0; i1 < y_total.length; i1++) {
+			for (int i2 = 0; i2 < y_total[i1].length; i2++) {
+
+				mean_y_coeff[i1][i2] = ( y_total[i1][i2] / (double)count );
+			}
+		}
+
+		return new OrthogonalTransform(mean_x_coeff, mean_y_coeff, intervals);
+	}
+}
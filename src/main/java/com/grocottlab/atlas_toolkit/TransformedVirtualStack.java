@@ -0,0 +1,264 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.TiffDecoder;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A virtual stack whose slices are transformed through a DisplacementField3D only when they are requested.
+ *
+ * This allows volumes larger than the heap to be transformed. The source is read one slice at a time,
+ * typically from a FileInfoVirtualStack, and only the source slices needed for the current slab of output
+ * slices (including the halo implied by the field's z displacements) are kept, in a cache limited by a memory
+ * budget. The field itself should be mapped from a file (see DisplacementField3D.openOrComposeMapped), so that
+only the planes of nodes around the current slab are resident; they are counted in the budget too. Saving the
+stack as a TIFF then streams each slab to disk as it is computed.
+ *
+ */
+public class TransformedVirtualStack extends VirtualStack {
+
+	private ImageStack source;
+	private DisplacementField3D field;
+	private boolean labels;
+	private int max_cached_slices;
+	private int slab_size;
+	private int bit_depth;
+	private Object pixel_type;	// An empty pixel array of the source type
+
+	// Source slices, least recently used first
+	private LinkedHashMap<Integer, Object> source_cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true);
+
+	// The most recently computed slab of output slices
+	private Object[] slab = new Object[0];
+	private int slab_start = -1;
+	private boolean over_budget = false;
+
+	/**
+	 * @param source The stack to be transformed, which may be virtual. It must have the dimensions of the field.
+	 * @param field The DisplacementField3D composed for the source.
+	 * @param labels If true, values are copied from the nearest voxel rather than interpolated trilinearly.
+	 * @param memory_budget The number of bytes to spend on cached source slices, output slices and the planes of field nodes
+	 *        read for each slab, which are paged in from the field file when the field is mapped.
+	 */
+	public TransformedVirtualStack(ImageStack source, DisplacementField3D field, boolean labels, long memory_budget) {
+
+		super(field.getWidth(), field.getHeight(), null, null);
+		if (source.getWidth() != field.getWidth() || source.getHeight() != field.getHeight() || source.getSize() != field.getDepth()) {
+
+			throw new IllegalArgumentException("Image is " + source.getWidth() + "x" + source.getHeight() + "x" + source.getSize()
+							   + " but the displacement field is " + field.getWidth() + "x" + field.getHeight() + "x" + field.getDepth());
+		}
+		this.source = source;
+		this.field = field;
+		this.labels = labels;
+
+		// Size the slab by the number of processors, take out the planes of nodes that a slab reads from the field,
+		// then leave the rest of the budget for source slices
+		Object first_slice = source.getPixels(1);
+		bit_depth = getBitDepth(first_slice);
+		pixel_type = StackReslicer.createPixels(first_slice, 0);
+		long slice_bytes = (long)source.getWidth() * source.getHeight() * ((bit_depth == 24) ? 4 : bit_depth / 8);
+		slab_size = (int)Math.max(Math.min(Runtime.getRuntime().availableProcessors(), (memory_budget / slice_bytes) / 4), 1);
+		long field_bytes = field.getNodePlaneBytes() * field.getNodePlanes(slab_size);
+		if (memory_budget - field_bytes < 2 * slice_bytes) {
+
+			IJ.log("Memory budget of " + (memory_budget >> 20) + " MB is too small for the " + (field_bytes >> 20) + " MB of displacement field read per slab; "
+			       + "it will be exceeded");
+		}
+		long budget_slices = Math.max((memory_budget - field_bytes) / slice_bytes, 2);
+		slab_size = (int)Math.max(Math.min(slab_size, budget_slices / 4), 1);
+		max_cached_slices = (int)Math.min(Math.max(budget_slices - slab_size, 1), Integer.MAX_VALUE);
+		source_cache.put(0, first_slice);
+	}
+
+	/**
+	 * Opens a TIFF stack as a virtual stack, so that slices are read from disk only when requested.
+	 *
+	 * @param path The absolute path of an uncompressed TIFF stack, as saved by ImageJ.
+	 * @return A FileInfoVirtualStack, or null if the file cannot be opened virtually.
+	 */
+	static public ImageStack openVirtual(String path) {
+
+		File file = new File(path);
+		try {
+
+			FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+			if (info == null || info.length != 1 || info[0].compression != FileInfo.COMPRESSION_NONE) return null;
+			if (info[0].directory == null || info[0].directory.length() == 0) info[0].directory = file.getParent() + File.separator;
+
+			return new FileInfoVirtualStack(info[0], false);
+
+		} catch (IOException e) {
+
+			IJ.log("Could not open " + path + " as a virtual stack: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Transforms a stack slab by slab, writing it to a TIFF file as it goes.
+	 *
+	 * @param source The stack to be transformed, which may be virtual.
+	 * @param field The DisplacementField3D composed for the source.
+	 * @param labels If true, values are copied from the nearest voxel rather than interpolated trilinearly.
+	 * @param memory_budget The number of bytes to spend on cached source slices, output slices and field nodes.
+	 * @param title The title of the transformed image.
+	 * @param path The absolute path of the output TIFF file.
+	 * @return True if the file was saved.
+	 */
+	static public boolean saveAsTiff(ImageStack source, DisplacementField3D field, boolean labels, long memory_budget, String title, String path) {
+
+		TransformedVirtualStack stack = new TransformedVirtualStack(source, field, labels, memory_budget);
+		ImagePlus image = new ImagePlus(title, stack);
+
+		// FileSaver checks that a virtual stack is not being saved over its own file
+		FileInfo fi = new FileInfo();
+		fi.directory = "";
+		fi.fileName = title;
+		image.setFileInfo(fi);
+
+		return new FileSaver(image).saveAsTiffStack(path);
+	}
+
+	@Override
+	public int getSize() {
+
+		return field.getDepth();
+	}
+
+	@Override
+	public int getBitDepth() {
+
+		return bit_depth;
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+
+		return null;
+	}
+
+	@Override
+	public Object getPixels(int n) {
+
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public synchronized ImageProcessor getProcessor(int n) {
+
+		int z = n - 1;
+		if (z < slab_start || z >= slab_start + slab.length) computeSlab(z);
+		Object pixels = slab[z - slab_start];
+		int width = getWidth();
+		int height = getHeight();
+		if (pixels instanceof byte[]) return new ByteProcessor(width, height, (byte[])pixels, null);
+		if (pixels instanceof short[]) return new ShortProcessor(width, height, (short[])pixels, null);
+		if (pixels instanceof float[]) return new FloatProcessor(width, height, (float[])pixels, null);
+
+		return new ColorProcessor(width, height, (int[])pixels);
+	}
+
+	private void computeSlab(int first_slice) {
+
+		/*
+		 *  Resample the output slices from first_slice onwards, holding in memory only the source slices they sample.
+		 */
+
+		final int depth = field.getDepth();
+		final int slab_length = Math.min(slab_size, depth - first_slice);
+		final int[] range = field.getSourceRange(first_slice, first_slice + slab_length - 1);
+		if (range != null && range[1] - range[0] + 1 > max_cached_slices && !over_budget) {
+
+			// Go over budget rather than fail, but only say so once
+			over_budget = true;
+			IJ.log("Memory budget is too small for slices " + (first_slice + 1) + "-" + (first_slice + slab_length) + "; "
+			       + (range[1] - range[0] + 1) + " source slices are needed at once");
+		}
+
+		// Gather the source slices for the slab, evicting the least recently used beyond the budget
+		final Object[] input = new Object[depth];
+		if (range != null) {
+
+			for (int z = range[0]; z <= range[1]; z++) {
+
+				Object pixels = source_cache.get(z);
+				if (pixels == null) {
+
+					pixels = source.getPixels(z + 1);
+					source_cache.put(z, pixels);
+				}
+				input[z] = pixels;
+			}
+			Iterator<Map.Entry<Integer, Object>> entries = source_cache.entrySet().iterator();
+			while (source_cache.size() > max_cached_slices && entries.hasNext()) {
+
+				int z = entries.next().getKey();
+				if (z < range[0] || z > range[1]) entries.remove();
+			}
+		}
+
+		// Share the output slices of the slab between tasks
+		slab = null;
+		final Object[] output = new Object[slab_length];
+		final int start = first_slice;
+		WorkerPool.forEach(slab_length, new WorkerPool.IndexedTask() {
+
+			public void run(int s) {
+
+				// Slices that sample only outside the volume are left blank
+				output[s] = StackReslicer.createPixels(pixel_type, getWidth() * getHeight());
+				if (range != null) field.resampleSlice(input, output[s], start + s, labels);
+			}
+		});
+		slab = output;
+		slab_start = first_slice;
+		IJ.showProgress(first_slice + slab_length, depth);
+	}
+
+	static private int getBitDepth(Object pixels) {
+
+		if (pixels instanceof byte[]) return 8;
+		if (pixels instanceof short[]) return 16;
+		if (pixels instanceof float[]) return 32;
+
+		return 24;
+	}
+}
@@ -0,0 +1,352 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A store of volumes held in memory-mapped scratch files rather than on the Java heap.
+ *
+ * Each volume is written to its own file in a scratch folder and mapped into memory, and is returned as an
+ * ImagePlus whose virtual stack copies a slice onto the heap only when it is requested. Which slices stay
+ * resident is left to the operating system's page cache, so the number of volumes a group registration can
+ * hold is limited by disk space rather than by the maximum heap size. Replacing a volume rewrites the file of
+ * its index in place, so the disk space of a group is that of one volume per index however many times the
+ * volumes are replaced, but images already returned for the old volume then read the new one and must not be
+ * used. The scratch files are deleted by close(), or when the JVM exits.
+ *
+ */
+public class VolumeStore {
+
+	// Each mapping holds whole slices and is kept below the 2 GB limit of a MappedByteBuffer
+	static final long MAX_MAPPING_BYTES = 1L << 30;
+
+	private File directory;
+	private List<File> files = new ArrayList<File>();
+	private List<ImagePlus> volumes = new ArrayList<ImagePlus>();
+
+	/**
+	 * Creates a store in a new folder under the system's temporary folder.
+	 *
+	 * @throws IOException If the scratch folder cannot be created.
+	 */
+	public VolumeStore() throws IOException {
+
+		this(null);
+	}
+
+	/**
+	 * @param parent The folder in which to create the scratch folder, e.g. on a fast local disk, or null for the system's temporary folder.
+	 * @throws IOException If the scratch folder cannot be created.
+	 */
+	public VolumeStore(String parent) throws IOException {
+
+		File scratch = File.createTempFile("atlas_toolkit_volumes", "", (parent == null) ? null : new File(parent));
+		if (!scratch.delete() || !scratch.mkdir()) throw new IOException("Could not create scratch folder " + scratch.getPath());
+		scratch.deleteOnExit();
+		directory = scratch;
+	}
+
+	/**
+	 * Writes a volume to the store.
+	 *
+	 * @param image The volume, which is not modified.
+	 * @return The index of the volume in the store.
+	 * @throws IOException If the volume cannot be written.
+	 */
+	public synchronized int add(ImagePlus image) throws IOException {
+
+		files.add(null);
+		volumes.add(null);
+		set(volumes.size() - 1, image);
+
+		return volumes.size() - 1;
+	}
+
+	/**
+	 * Writes a volume to the store in place of the volume at index. Images previously returned by get(index) must no
+	 * longer be used, since the new volume is written over the old one in the same file.
+	 *
+	 * @param index The index of the volume to be replaced.
+	 * @param image The new volume, which is not modified.
+	 * @throws IOException If the volume cannot be written.
+	 */
+	public void set(int index, ImagePlus image) throws IOException {
+
+		File file;
+		synchronized (this) {
+
+			file = files.get(index);
+			if (file == null) {
+
+				file = new File(directory, "volume" + (index+1) + ".raw");
+				file.deleteOnExit();
+				files.set(index, file);
+			}
+		}
+		ImagePlus volume = write(file, image);
+		synchronized (this) {
+
+			volumes.set(index, volume);
+		}
+	}
+
+	/**
+	 * @param index The index of the volume.
+	 * @return An ImagePlus of the volume backed by its scratch file. Its slices are copied onto the heap as they are read.
+	 */
+	public synchronized ImagePlus get(int index) {
+
+		return volumes.get(index);
+	}
+
+	/**
+	 * @return The number of volumes in the store.
+	 */
+	public synchronized int getSize() {
+
+		return volumes.size();
+	}
+
+	/**
+	 * Deletes the scratch files. Images returned by get() must not be used afterwards.
+	 */
+	public synchronized void close() {
+
+		for (int i = 0; i < files.size(); i++) {
+
+			if (files.get(i) != null) files.get(i).delete();
+		}
+		files.clear();
+		volumes.clear();
+		directory.delete();
+	}
+
+	static private ImagePlus write(File file, ImagePlus image) throws IOException {
+
+		/*
+		 *  Write every slice of the image to the file in native byte order, then map the file in chunks of whole slices.
+		 *  The file is only ever extended, so that a mapping of a larger volume it held before is never left beyond its end.
+		 */
+
+		ImageStack stack = image.getStack();
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int depth = stack.getSize();
+		int bit_depth = image.getBitDepth();
+		int bytes_per_pixel = (bit_depth == 24) ? 4 : bit_depth / 8;
+		long slice_bytes = (long)width * height * bytes_per_pixel;
+		int slices_per_mapping = (int)Math.max(Math.min(MAX_MAPPING_BYTES / slice_bytes, depth), 1);
+		MappedByteBuffer[] mappings = new MappedByteBuffer[(depth + slices_per_mapping - 1) / slices_per_mapping];
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+
+			FileChannel channel = raf.getChannel();
+			if (raf.length() < slice_bytes * depth) raf.setLength(slice_bytes * depth);
+			for (int m = 0; m < mappings.length; m++) {
+
+				int first = m * slices_per_mapping;
+				int count = Math.min(slices_per_mapping, depth - first);
+				mappings[m] = channel.map(FileChannel.MapMode.READ_WRITE, first * slice_bytes, count * slice_bytes);
+				mappings[m].order(ByteOrder.nativeOrder());
+				for (int s = 0; s < count; s++) {
+
+					ByteBuffer buffer = mappings[m].duplicate().order(ByteOrder.nativeOrder());
+					buffer.position((int)(s * slice_bytes));
+					putPixels(buffer, stack.getPixels(first + s + 1));
+				}
+			}
+
+		} finally {
+
+			// The mappings stay valid once the file is closed
+			raf.close();
+		}
+
+		MappedStack mapped_stack = new MappedStack(mappings, slices_per_mapping, width, height, depth, bit_depth);
+		ImagePlus volume = new ImagePlus(image.getTitle(), mapped_stack);
+		Calibration calibration = image.getCalibration();
+		if (calibration != null) volume.setCalibration(calibration.copy());
+
+		// FileSaver checks that a virtual stack is not being saved over its own file
+		FileInfo fi = new FileInfo();
+		fi.directory = "";
+		fi.fileName = image.getTitle();
+		volume.setFileInfo(fi);
+
+		return volume;
+	}
+
+	static private void putPixels(ByteBuffer buffer, Object pixels) {
+
+		if (pixels instanceof byte[]) {
+
+			buffer.put((byte[])pixels);
+
+		} else if (pixels instanceof short[]) {
+
+			buffer.asShortBuffer().put((short[])pixels);
+
+		} else if (pixels instanceof float[]) {
+
+			buffer.asFloatBuffer().put((float[])pixels);
+
+		} else {
+
+			buffer.asIntBuffer().put((int[])pixels);
+		}
+	}
+
+	/**
+	 * A read-only virtual stack whose slices are copied from memory-mapped buffers.
+	 */
+	static class MappedStack extends VirtualStack {
+
+		private MappedByteBuffer[] mappings;
+		private int slices_per_mapping;
+		private int depth;
+		private int bit_depth;
+
+		MappedStack(MappedByteBuffer[] mappings, int slices_per_mapping, int width, int height, int depth, int bit_depth) {
+
+			super(width, height, null, null);
+			this.mappings = mappings;
+			this.slices_per_mapping = slices_per_mapping;
+			this.depth = depth;
+			this.bit_depth = bit_depth;
+		}
+
+		@Override
+		public int getSize() {
+
+			return depth;
+		}
+
+		@Override
+		public int getBitDepth() {
+
+			return bit_depth;
+		}
+
+		@Override
+		public String getSliceLabel(int n) {
+
+			return null;
+		}
+
+		@Override
+		public void deleteSlice(int n) {
+
+			throw new UnsupportedOperationException("Volumes in a VolumeStore are read-only");
+		}
+
+		/**
+		 * @param n The slice number, 1 &lt;= n &lt;= getSize().
+		 * @return A view of the slice in its mapping, as a ByteBuffer, ShortBuffer, FloatBuffer or IntBuffer by bit depth,
+		 *         from which pixels can be read by index without copying the slice onto the heap.
+		 */
+		Buffer getBuffer(int n) {
+
+			int pixel_count = getWidth() * getHeight();
+			int bytes_per_pixel = (bit_depth == 24) ? 4 : bit_depth / 8;
+			int m = (n - 1) / slices_per_mapping;
+			int s = (n - 1) % slices_per_mapping;
+			ByteBuffer buffer = mappings[m].duplicate();
+			buffer.position(s * pixel_count * bytes_per_pixel);
+			buffer.limit((s + 1) * pixel_count * bytes_per_pixel);
+			buffer = buffer.slice().order(ByteOrder.nativeOrder());
+			switch (bit_depth) {
+				case 8: return buffer;
+				case 16: return buffer.asShortBuffer();
+				case 32: return buffer.asFloatBuffer();
+				default: return buffer.asIntBuffer();
+			}
+		}
+
+		@Override
+		public Object getPixels(int n) {
+
+			// Copy the slice from its mapping, through a private view so that slices can be read from several threads at once
+			int pixel_count = getWidth() * getHeight();
+			int m = (n - 1) / slices_per_mapping;
+			int s = (n - 1) % slices_per_mapping;
+			ByteBuffer buffer = mappings[m].duplicate().order(ByteOrder.nativeOrder());
+			switch (bit_depth) {
+				case 8:
+					byte[] bytes = new byte[pixel_count];
+					buffer.position(s * pixel_count);
+					buffer.get(bytes);
+					return bytes;
+				case 16:
+					short[] shorts = new short[pixel_count];
+					buffer.position(s * pixel_count * 2);
+					buffer.asShortBuffer().get(shorts);
+					return shorts;
+				case 32:
+					float[] floats = new float[pixel_count];
+					buffer.position(s * pixel_count * 4);
+					buffer.asFloatBuffer().get(floats);
+					return floats;
+				default:
+					int[] ints = new int[pixel_count];
+					buffer.position(s * pixel_count * 4);
+					buffer.asIntBuffer().get(ints);
+					return ints;
+			}
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int n) {
+
+			Object pixels = getPixels(n);
+			int width = getWidth();
+			int height = getHeight();
+			switch (bit_depth) {
+				case 8: return new ByteProcessor(width, height, (byte[])pixels, null);
+				case 16: return new ShortProcessor(width, height, (short[])pixels, null);
+				case 32: return new FloatProcessor(width, height, (float[])pixels, null);
+				default: return new ColorProcessor(width, height, (int[])pixels);
+			}
+		}
+	}
+}
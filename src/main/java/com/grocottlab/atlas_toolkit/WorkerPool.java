@@ -0,0 +1,103 @@
+package com.grocottlab.atlas_toolkit;
+
+/**
+ * Atlas Toolkit plugin for ImageJ and Fiji.
+ * Copyright (C) 2015 Timothy Grocott 
+ *
+ * More information at http://www.grocottlab.com/software
+ *
+ * This file is part of Atlas Toolkit.
+ * 
+ * Atlas Toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * Atlas Toolkit is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A work-stealing pool of worker threads shared by the whole toolkit.
+ *
+ * The pool is created once, with one worker per processor, and kept for the life of the session, so that
+ * the per-image and per-slice work of each plane and iteration is submitted as independent tasks rather
+ * than to threads created and joined batch by batch. A task that submits tasks of its own, e.g. an image
+ * whose slices are then shared out, helps to run them while it waits, so nesting does not create more
+ * threads than processors and an idle worker can always take work queued by a busy one.
+ *
+ */
+public class WorkerPool {
+
+	static private ForkJoinPool pool = null;
+
+	/**
+	 * A task that is run once for each index of a range.
+	 */
+	public interface IndexedTask {
+
+		void run(int index);
+	}
+
+	/**
+	 * @return The shared pool, which is created on first use.
+	 */
+	static public synchronized ForkJoinPool getPool() {
+
+		if (pool == null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+		return pool;
+	}
+
+	/**
+	 * Runs a task for every index from 0 to count - 1, each as an independent task of the shared pool,
+	 * and returns once all have finished.
+	 *
+	 * @param count The number of indices.
+	 * @param task The task to run for each index.
+	 * @throws RuntimeException If any task fails. The remaining tasks are still completed first.
+	 */
+	static public void forEach(int count, final IndexedTask task) {
+
+		if (count <= 0) return;
+		final List<RecursiveAction> actions = new ArrayList<RecursiveAction>(count);
+		for (int i = 0; i < count; i++) {
+
+			final int index = i;
+			actions.add(new RecursiveAction() {
+
+				protected void compute() {
+
+					task.run(index);
+				}
+			});
+		}
+
+		if (ForkJoinTask.inForkJoinPool()) {
+
+			// Already on a worker, so fork the tasks and help to run them
+			ForkJoinTask.invokeAll(actions);
+
+		} else {
+
+			getPool().invoke(new RecursiveAction() {
+
+				protected void compute() {
+
+					invokeAll(actions);
+				}
+			});
+		}
+	}
+}
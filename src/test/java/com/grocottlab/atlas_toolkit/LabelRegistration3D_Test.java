@@ -0,0 +1,172 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.junit.Test;
+
+/**
+ * Tests the vote count, consensus and probability map of a registered group, and the isolation and down-sampling of
+ * jointly registered labels.
+ */
+public class LabelRegistration3D_Test {
+
+	static final int WIDTH = 17;
+	static final int HEIGHT = 11;
+	static final int DEPTH = 6;
+
+	@Test
+	public void consensusOfAllMatchesIntersection() {
+
+		ImagePlus[] images = TestData.createLabels(30, 5, WIDTH, HEIGHT, DEPTH, 0.8);
+		ImagePlus votes = LabelRegistration3D_.getVoteCount(images);
+		assertEquals(8, votes.getBitDepth());
+
+		// The original intersection: AND the binary images together
+		TestData.assertSameStack(combine(images, true), LabelRegistration3D_.getConsensus(votes, images.length).getStack());
+		TestData.assertSameStack(combine(images, true), LabelRegistration3D_.getIntersection(images).getStack());
+
+		// A single vote is enough for the union
+		TestData.assertSameStack(combine(images, false), LabelRegistration3D_.getConsensus(votes, 1).getStack());
+	}
+
+	@Test
+	public void votesCountLabelledImages() {
+
+		ImagePlus[] images = TestData.createLabels(31, 9, WIDTH, HEIGHT, DEPTH, 0.5);
+		ImagePlus votes = LabelRegistration3D_.getVoteCount(images);
+		ImagePlus probability = LabelRegistration3D_.getProbabilityMap(votes, images.length);
+		for (int z = 0; z < DEPTH; z++) {
+			for (int i = 0; i < WIDTH * HEIGHT; i++) {
+
+				int count = 0;
+				for (ImagePlus image : images) {
+
+					if (image.getStack().getProcessor(z + 1).get(i) == 255) count++;
+				}
+				assertEquals(count, votes.getStack().getProcessor(z + 1).get(i));
+				assertEquals(count / 9.0, probability.getStack().getProcessor(z + 1).getf(i), 1e-6);
+			}
+		}
+	}
+
+	@Test
+	public void addedVotesMatchRecount() {
+
+		ImagePlus[] images = TestData.createLabels(32, 6, WIDTH, HEIGHT, DEPTH, 0.5);
+		ImagePlus[] group = new ImagePlus[] {images[0], images[1], images[2], images[3]};
+		ImagePlus votes = LabelRegistration3D_.getVoteCount(group);
+		LabelRegistration3D_.addVotes(votes, new ImagePlus[] {images[4], images[5]});
+		TestData.assertSameStack(LabelRegistration3D_.getVoteCount(images).getStack(), votes.getStack());
+	}
+
+	@Test
+	public void moreThan255ImagesAreCountedIn16Bits() {
+
+		ImagePlus[] images = new ImagePlus[300];
+		ImagePlus label = TestData.createLabels(33, 1, WIDTH, HEIGHT, DEPTH, 0.5)[0];
+		for (int i = 0; i < images.length; i++) images[i] = label;
+		ImagePlus votes = LabelRegistration3D_.getVoteCount(images);
+		assertEquals(16, votes.getBitDepth());
+		TestData.assertSameStack(label.getStack(), LabelRegistration3D_.getConsensus(votes, images.length).getStack());
+
+		// An 8-bit count is widened without changing it
+		ImagePlus byte_votes = LabelRegistration3D_.getVoteCount(new ImagePlus[] {label, label});
+		ImagePlus short_votes = LabelRegistration3D_.getShortVotes(byte_votes);
+		assertEquals(16, short_votes.getBitDepth());
+		TestData.assertSameStack(byte_votes.getStack(), short_votes.getStack());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void overflowingVotesAreRefused() {
+
+		ImagePlus[] images = new ImagePlus[200];
+		ImagePlus label = TestData.createLabels(34, 1, WIDTH, HEIGHT, DEPTH, 0.5)[0];
+		for (int i = 0; i < images.length; i++) images[i] = label;
+		ImagePlus votes = LabelRegistration3D_.getVoteCount(images);
+		LabelRegistration3D_.addVotes(votes, images);
+	}
+
+	@Test
+	public void labelsAreIsolatedAtTheirLevels() {
+
+		int[] labels = LabelRegistration3D_.getLabels(3, "5, 7;3 x");
+		assertArrayEquals(new int[] {3, 5, 7}, labels);
+		int[] levels = LabelRegistration3D_.getLabelLevels(labels.length);
+		assertEquals(255, levels[0]);
+		ImagePlus image = new ImagePlus("labels", ImageStack.create(WIDTH, HEIGHT, DEPTH, 8));
+		for (int z = 1; z <= DEPTH; z++) {
+			for (int i = 0; i < WIDTH * HEIGHT; i++) image.getStack().getProcessor(z).set(i, i % 9);
+		}
+		LabelRegistration3D_.isolateLabels(image, labels, levels);
+		for (int z = 1; z <= DEPTH; z++) {
+			for (int i = 0; i < WIDTH * HEIGHT; i++) {
+
+				int expected = 0;
+				for (int l = 0; l < labels.length; l++) {
+
+					if (i % 9 == labels[l]) expected = levels[l];
+				}
+				assertEquals(expected, image.getStack().getProcessor(z).get(i));
+			}
+		}
+	}
+
+	@Test
+	public void downsampledLabelsKeepTheirLevels() {
+
+		int[] levels = LabelRegistration3D_.getLabelLevels(3);
+		ImagePlus[] images = TestData.createLabels(36, 3, WIDTH, HEIGHT, DEPTH, 0.5);
+		ImageStack stack = ImageStack.create(WIDTH, HEIGHT, DEPTH, 8);
+		for (int z = 1; z <= DEPTH; z++) {
+			for (int i = 0; i < WIDTH * HEIGHT; i++) {
+
+				for (int label = 0; label < 3; label++) {
+
+					if (images[label].getStack().getProcessor(z).get(i) == 255) stack.getProcessor(z).set(i, levels[label]);
+				}
+			}
+		}
+		ImagePlus downsampled = LabelRegistration3D_.downsample(new ImagePlus("labels", stack), 2, levels);
+		for (int z = 1; z <= downsampled.getStackSize(); z++) {
+
+			pixel_loop:
+			for (int i = 0; i < downsampled.getWidth() * downsampled.getHeight(); i++) {
+
+				int value = downsampled.getStack().getProcessor(z).get(i);
+				if (value == 0) continue;
+				for (int level : levels) {
+
+					if (value == level) continue pixel_loop;
+				}
+				fail("Down-sampling made up level " + value);
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooManyLabelsAreRefused() {
+
+		LabelRegistration3D_.getLabelLevels(LabelRegistration3D_.MAX_LABELS + 1);
+	}
+
+	static ImageStack combine(ImagePlus[] images, boolean and) {
+
+		ImageStack stack = ImageStack.create(WIDTH, HEIGHT, DEPTH, 8);
+		for (int z = 1; z <= DEPTH; z++) {
+			for (int i = 0; i < WIDTH * HEIGHT; i++) {
+
+				boolean labelled = and;
+				for (ImagePlus image : images) {
+
+					boolean value = (image.getStack().getProcessor(z).get(i) == 255);
+					labelled = and ? (labelled && value) : (labelled || value);
+				}
+				stack.getProcessor(z).set(i, labelled ? 255 : 0);
+			}
+		}
+
+		return stack;
+	}
+}
@@ -0,0 +1,166 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests reading and writing ".ots" files in the binary format, and reading those written by Java serialization.
+ */
+public class OrthogonalTransformSequenceTest {
+
+	private File file;
+
+	@After
+	public void deleteFile() {
+
+		if (file != null) file.delete();
+	}
+
+	@Test
+	public void binaryFileRoundTrips() throws IOException {
+
+		OrthogonalTransformSequence ots = createSequence(10, 2, new int[] {40, 32, 24});
+		file = File.createTempFile("ots_test", ".ots");
+		ots.saveToFile(file.getPath());
+
+		// The file starts with "OTSB"
+		byte[] magic = new byte[4];
+		FileInputStream in = new FileInputStream(file);
+		try {
+
+			in.read(magic);
+
+		} finally {
+
+			in.close();
+		}
+		assertEquals("OTSB", new String(magic, "US-ASCII"));
+
+		assertSameSequence(ots, OrthogonalTransformSequence.openOTS(file.getPath()));
+	}
+
+	@Test
+	public void legacySerializedFileCanBeOpened() throws IOException {
+
+		OrthogonalTransformSequence ots = createSequence(11, 3, new int[] {20, 16, 12});
+		file = File.createTempFile("ots_test", ".ots");
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+		try {
+
+			out.writeObject(ots);
+
+		} finally {
+
+			out.close();
+		}
+
+		assertSameSequence(ots, OrthogonalTransformSequence.openOTS(file.getPath()));
+	}
+
+	@Test
+	public void otherFilesAreNotOpened() throws IOException {
+
+		file = File.createTempFile("ots_test", ".ots");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+
+			out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+		} finally {
+
+			out.close();
+		}
+
+		assertNull(OrthogonalTransformSequence.openOTS(file.getPath()));
+	}
+
+	@Test
+	public void corruptFilesAreNotOpened() throws IOException {
+
+		file = File.createTempFile("ots_test", ".ots");
+		createSequence(12, 2, new int[] {20, 16, 12}).saveToFile(file.getPath());
+		byte[] bytes = new byte[(int)file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+
+			for (int read = 0; read < bytes.length; ) read += in.read(bytes, read, bytes.length - read);
+
+		} finally {
+
+			in.close();
+		}
+
+		// Cut short in the header, the shapes and the coefficients
+		int[] lengths = {6, 22, 30, 100, bytes.length - 1};
+		for (int length : lengths) {
+
+			write(Arrays.copyOf(bytes, length));
+			assertNull("Truncated to " + length, OrthogonalTransformSequence.openOTS(file.getPath()));
+		}
+
+		// Iteration counts and shapes that do not fit in the file
+		int[][] corruptions = {{20, -1}, {20, Integer.MAX_VALUE}, {20, 3}, {28, 0}, {28, Integer.MAX_VALUE}, {32, -5}};
+		for (int[] corruption : corruptions) {
+
+			ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN);
+			corrupt.putInt(corruption[0], corruption[1]);
+			write(corrupt.array());
+			assertNull(corruption[1] + " at " + corruption[0], OrthogonalTransformSequence.openOTS(file.getPath()));
+		}
+
+		// The file itself is still read
+		write(bytes);
+		assertNotNull(OrthogonalTransformSequence.openOTS(file.getPath()));
+	}
+
+	private void write(byte[] bytes) throws IOException {
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+
+			out.write(bytes);
+
+		} finally {
+
+			out.close();
+		}
+	}
+
+	static OrthogonalTransformSequence createSequence(long seed, int iteration_count, int[] dimensions) {
+
+		// A different grid for each plane
+		OrthogonalTransform[][] ot = new OrthogonalTransform[iteration_count][3];
+		for (int iteration = 0; iteration < iteration_count; iteration++) {
+			for (int plane = 0; plane < 3; plane++) {
+
+				ot[iteration][plane] = TestData.createTransforms(seed++, 1, 1 << (plane + 1))[0];
+			}
+		}
+
+		return new OrthogonalTransformSequence(ot, dimensions);
+	}
+
+	static void assertSameSequence(OrthogonalTransformSequence expected, OrthogonalTransformSequence actual) {
+
+		assertNotNull(actual);
+		assertEquals(expected.getIterations(), actual.getIterations());
+		assertArrayEquals(expected.getDimensions(), actual.getDimensions());
+		for (int iteration = 0; iteration < expected.getIterations(); iteration++) {
+
+			for (OrthogonalTransformSequence.OrthogonalPlane plane : OrthogonalTransformSequence.OrthogonalPlane.values()) {
+
+				TestData.assertSameTransform(expected.getOrthogonalTransform(plane, iteration), actual.getOrthogonalTransform(plane, iteration), 0);
+			}
+		}
+	}
+}
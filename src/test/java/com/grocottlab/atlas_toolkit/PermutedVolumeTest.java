@@ -0,0 +1,104 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.plugin.ZProjector;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Tests PermutedVolume views against the materialized reslices and ZProjector projections they replace, and views of
+ * volumes held by a VolumeStore against views of the same volumes on the heap.
+ */
+public class PermutedVolumeTest {
+
+	// ZProjector does not average RGB stacks
+	static final int[] GRAY_BIT_DEPTHS = {8, 16, 32};
+
+	@Test
+	public void viewMatchesReslice() {
+
+		for (int bit_depth : TestData.BIT_DEPTHS) {
+
+			ImagePlus image = TestData.createImage(3, bit_depth, 11, 7, 5);
+			ImagePlus resliced = image;
+			for (int rotations = 0; rotations < 3; rotations++) {
+
+				PermutedVolume view = new PermutedVolume(image, rotations);
+				assertArrayEquals(new int[] {resliced.getWidth(), resliced.getHeight(), resliced.getStackSize()},
+						  PermutedVolume.getDimensions(image, rotations));
+				TestData.assertSameImage(bit_depth + "-bit, " + rotations + " rotations", resliced, view.toImagePlus());
+				for (int z = 0; z < view.getSize(); z++) {
+
+					assertEquals(resliced.getStack().getVoxel(3, 2, z), view.getVoxel(3, 2, z), 0);
+				}
+				resliced = TestData.resliceVoxels(resliced);
+			}
+		}
+	}
+
+	@Test
+	public void averageProjectionMatchesZProjector() {
+
+		for (int bit_depth : GRAY_BIT_DEPTHS) {
+
+			ImagePlus image = TestData.createImage(4, bit_depth, 11, 7, 5);
+			ImagePlus resliced = image;
+			for (int rotations = 0; rotations < 3; rotations++) {
+
+				ZProjector projector = new ZProjector(resliced);
+				projector.setMethod(ZProjector.AVG_METHOD);
+				projector.doProjection();
+				ImagePlus expected = projector.getProjection();
+				ImagePlus actual = new PermutedVolume(image, rotations).getAverageProjection();
+				assertEquals(expected.getBitDepth(), actual.getBitDepth());
+				TestData.assertSameImage(bit_depth + "-bit, " + rotations + " rotations", expected, actual);
+				resliced = TestData.resliceVoxels(resliced);
+			}
+		}
+	}
+
+	@Test
+	public void storedVolumeViewMatchesHeapView() throws IOException {
+
+		VolumeStore store = new VolumeStore();
+		try {
+
+			for (int bit_depth : TestData.BIT_DEPTHS) {
+
+				ImagePlus image = TestData.createImage(5, bit_depth, 13, 7, 5);
+				ImagePlus stored = store.get(store.add(image));
+				for (int rotations = 0; rotations < 3; rotations++) {
+
+					PermutedVolume expected = new PermutedVolume(image, rotations);
+					PermutedVolume actual = new PermutedVolume(stored, rotations);
+					String message = bit_depth + "-bit, " + rotations + " rotations";
+					TestData.assertSameImage(message, expected.toImagePlus(), actual.toImagePlus());
+					TestData.assertSameImage(message, expected.getAverageProjection(), actual.getAverageProjection());
+				}
+			}
+
+		} finally {
+
+			store.close();
+		}
+	}
+
+	@Test
+	public void storedVolumeCanBeReplaced() throws IOException {
+
+		VolumeStore store = new VolumeStore();
+		try {
+
+			int index = store.add(TestData.createImage(6, 8, 13, 7, 5));
+			ImagePlus image = TestData.createImage(7, 8, 13, 7, 5);
+			store.set(index, image);
+			TestData.assertSameImage("8-bit", image, store.get(index));
+
+		} finally {
+
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a registration resumed from a checkpoint gets back the transforms, images and progress that were saved.
+ */
+public class RegistrationCheckpointTest {
+
+	static final int ITERATION_COUNT = 2;
+	static final int IMAGE_COUNT = 3;
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+
+		directory = File.createTempFile("checkpoint_test", "");
+		directory.delete();
+	}
+
+	@After
+	public void deleteDirectory() {
+
+		delete(directory);
+	}
+
+	@Test
+	public void checkpointRoundTrips() throws IOException {
+
+		ImagePlus[] images = TestData.createLabels(20, IMAGE_COUNT, 17, 11, 6, 0.5);
+		int[][] dimensions = getDimensions(images);
+		OrthogonalTransform[][][] ot = new OrthogonalTransform[ITERATION_COUNT][3][];
+		RegistrationCheckpoint checkpoint = new RegistrationCheckpoint(directory.getPath());
+		assertFalse(checkpoint.exists());
+
+		// Register the first plane of the second iteration, after the whole of the first
+		OrthogonalTransformSequence.OrthogonalPlane[] planes = OrthogonalTransformSequence.OrthogonalPlane.values();
+		for (int p = 0; p < planes.length; p++) {
+
+			ot[0][RegistrationCheckpoint.getPlaneIndex(planes[p])] = TestData.createTransforms(21 + p, IMAGE_COUNT, 4);
+			assertTrue(checkpoint.save(0, p + 1, ot, images, dimensions, ITERATION_COUNT, 1, 0.5 + p, -1, -1));
+		}
+		ot[1][RegistrationCheckpoint.getPlaneIndex(planes[0])] = TestData.createTransforms(24, IMAGE_COUNT, 4);
+		assertTrue(checkpoint.save(1, 1, ot, images, dimensions, ITERATION_COUNT, 1, 0.75, 0.7, 2));
+
+		// Only the last generation is kept
+		int generation_count = 0;
+		for (File file : directory.listFiles()) {
+
+			if (file.isDirectory()) generation_count++;
+		}
+		assertEquals(1, generation_count);
+
+		RegistrationCheckpoint resumed = new RegistrationCheckpoint(directory.getPath());
+		assertTrue(resumed.exists());
+		OrthogonalTransform[][][] resumed_ot = new OrthogonalTransform[ITERATION_COUNT][3][];
+		ImagePlus[] resumed_images = resumed.load(resumed_ot, dimensions, 1);
+		assertEquals(1, resumed.getIteration());
+		assertEquals(1, resumed.getPlanesDone());
+		assertEquals(0.75, resumed.getDice(), 0);
+		assertEquals(0.7, resumed.getPreviousDice(), 0);
+		assertEquals(2, resumed.getPreviousFactor());
+		for (int it = 0; it < ITERATION_COUNT; it++) {
+			for (int plane = 0; plane < 3; plane++) {
+
+				if (ot[it][plane] == null) {
+
+					assertNull(resumed_ot[it][plane]);
+					continue;
+				}
+				for (int image = 0; image < IMAGE_COUNT; image++) {
+
+					TestData.assertSameTransform(ot[it][plane][image], resumed_ot[it][plane][image], 0);
+				}
+			}
+		}
+		for (int image = 0; image < IMAGE_COUNT; image++) {
+
+			TestData.assertSameStack(images[image].getStack(), resumed_images[image].getStack());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void mismatchedImagesAreRefused() throws IOException {
+
+		ImagePlus[] images = TestData.createLabels(25, IMAGE_COUNT, 17, 11, 6, 0.5);
+		int[][] dimensions = getDimensions(images);
+		OrthogonalTransform[][][] ot = new OrthogonalTransform[ITERATION_COUNT][3][];
+		ot[0][RegistrationCheckpoint.getPlaneIndex(OrthogonalTransformSequence.OrthogonalPlane.values()[0])] = TestData.createTransforms(26, IMAGE_COUNT, 4);
+		assertTrue(new RegistrationCheckpoint(directory.getPath()).save(0, 1, ot, images, dimensions, ITERATION_COUNT, 1, 0.5, -1, -1));
+
+		dimensions[1][0]++;
+		new RegistrationCheckpoint(directory.getPath()).load(new OrthogonalTransform[ITERATION_COUNT][3][], dimensions, 1);
+	}
+
+	static int[][] getDimensions(ImagePlus[] images) {
+
+		int[][] dimensions = new int[images.length][];
+		for (int image = 0; image < images.length; image++) {
+
+			dimensions[image] = new int[] {images[image].getWidth(), images[image].getHeight(), images[image].getStackSize()};
+		}
+
+		return dimensions;
+	}
+
+	static void delete(File file) {
+
+		File[] files = file.listFiles();
+		if (files != null) {
+
+			for (File child : files) delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,36 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import org.junit.Test;
+
+/**
+ * Tests StackReslicer against the voxel by voxel reslice it replaces.
+ */
+public class StackReslicerTest {
+
+	@Test
+	public void resliceMatchesVoxelCopy() {
+
+		for (int bit_depth : TestData.BIT_DEPTHS) {
+
+			// Big enough for more than one tile of output slices
+			ImagePlus image = TestData.createImage(1, bit_depth, 70, 9, 5);
+			ImagePlus expected = TestData.resliceVoxels(image);
+			ImagePlus actual = StackReslicer.reslice(image, 3);
+			TestData.assertSameImage(bit_depth + "-bit", expected, actual);
+			assertEquals(expected.getTitle(), actual.getTitle());
+			assertEquals(image.getCalibration().pixelHeight, actual.getCalibration().pixelWidth, 0);
+			assertEquals(image.getCalibration().pixelDepth, actual.getCalibration().pixelHeight, 0);
+			assertEquals(image.getCalibration().pixelWidth, actual.getCalibration().pixelDepth, 0);
+		}
+	}
+
+	@Test
+	public void resliceOfStackMatchesResliceOfImage() {
+
+		ImagePlus image = TestData.createImage(2, 16, 31, 17, 6);
+		TestData.assertSameImage("16-bit", StackReslicer.reslice(image), new ImagePlus("", StackReslicer.reslice(image.getStack(), 2)));
+	}
+}
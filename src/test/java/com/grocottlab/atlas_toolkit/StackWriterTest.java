@@ -0,0 +1,80 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that stacks saved as deflate-compressed TIFF are opened by ImageJ unchanged.
+ */
+public class StackWriterTest {
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+
+		directory = File.createTempFile("stack_writer_test", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void deleteDirectory() {
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+
+			for (File file : files) file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void deflateTiffRoundTrips() throws IOException {
+
+		int[] bit_depths = {8, 16, 32};
+		for (int bit_depth : bit_depths) {
+
+			ImagePlus image = TestData.createImage(40, bit_depth, 23, 13, 4);
+			String path = new File(directory, "stack" + bit_depth + ".tif").getPath();
+			StackWriter.saveAsDeflateTiff(image, path);
+			ImagePlus opened = new Opener().openImage(path);
+			assertNotNull(opened);
+			assertEquals(bit_depth, opened.getBitDepth());
+			TestData.assertSameImage(bit_depth + "-bit", image, opened);
+			assertEquals(image.getCalibration().pixelWidth, opened.getCalibration().pixelWidth, 1e-6);
+			assertEquals(image.getCalibration().pixelHeight, opened.getCalibration().pixelHeight, 1e-6);
+			assertEquals(image.getCalibration().pixelDepth, opened.getCalibration().pixelDepth, 1e-6);
+		}
+	}
+
+	@Test
+	public void queuedStacksAreSavedAsTiff() {
+
+		StackWriter writer = new StackWriter(StackWriter.Compression.DEFLATE, 2);
+		ImagePlus[] images = new ImagePlus[TestData.BIT_DEPTHS.length];
+		String[] paths = new String[images.length];
+		for (int i = 0; i < images.length; i++) {
+
+			images[i] = TestData.createImage(41 + i, TestData.BIT_DEPTHS[i], 23, 13, 4);
+			paths[i] = writer.save(images[i], new File(directory, "stack" + i).getPath());
+			assertEquals(new File(directory, "stack" + i + ".tif").getPath(), paths[i]);
+		}
+		assertTrue(writer.close());
+
+		// RGB stacks are saved uncompressed, but still opened the same
+		for (int i = 0; i < images.length; i++) {
+
+			ImagePlus opened = new Opener().openImage(paths[i]);
+			assertNotNull(opened);
+			TestData.assertSameImage(paths[i], images[i], opened);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+/**
+ * Random but repeatable images for the tests, each drawn from the seed it is given, and the checks the tests share.
+ */
+class TestData {
+
+	static final int[] BIT_DEPTHS = {8, 16, 32, 24};
+
+	static ImagePlus createImage(long seed, int bit_depth, int width, int height, int depth) {
+
+		// Uniform noise over the whole range of the type, or 0-1000 for 32-bit
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+
+			ImageProcessor ip;
+			switch (bit_depth) {
+				case 8: ip = new ByteProcessor(width, height); break;
+				case 16: ip = new ShortProcessor(width, height); break;
+				case 32: ip = new FloatProcessor(width, height); break;
+				default: ip = new ColorProcessor(width, height); break;
+			}
+			for (int i = 0; i < width * height; i++) {
+
+				if (bit_depth == 32) {
+
+					ip.setf(i, random.nextFloat() * 1000);
+
+				} else {
+
+					ip.set(i, random.nextInt((bit_depth == 24) ? 1 << 24 : 1 << bit_depth));
+				}
+			}
+			stack.addSlice(null, ip);
+		}
+		ImagePlus image = new ImagePlus("test", stack);
+		Calibration calibration = image.getCalibration();
+		calibration.pixelWidth = 0.5;
+		calibration.pixelHeight = 0.75;
+		calibration.pixelDepth = 2;
+
+		return image;
+	}
+
+	static ImagePlus[] createLabels(long seed, int count, int width, int height, int depth, double fraction) {
+
+		// Binary (0/255) images, each labelling about fraction of its voxels
+		Random random = new Random(seed);
+		ImagePlus[] images = new ImagePlus[count];
+		for (int n = 0; n < count; n++) {
+
+			ImageStack stack = new ImageStack(width, height);
+			for (int z = 0; z < depth; z++) {
+
+				ByteProcessor ip = new ByteProcessor(width, height);
+				for (int i = 0; i < width * height; i++) ip.set(i, (random.nextDouble() < fraction) ? 255 : 0);
+				stack.addSlice(null, ip);
+			}
+			images[n] = new ImagePlus("label" + n, stack);
+		}
+
+		return images;
+	}
+
+	static ImagePlus resliceVoxels(ImagePlus input_image) {
+
+		// The original reslice: y becomes x; z becomes y; x becomes z, one voxel at a time
+		int[] input_dimensions = input_image.getDimensions();
+		ImageStack output_stack = ImageStack.create(input_dimensions[1], input_dimensions[3], input_dimensions[0], input_image.getBitDepth());
+		for (int z = 0; z < input_dimensions[3]; z++) {
+			for (int y = 0; y < input_dimensions[1]; y++) {
+				for (int x = 0; x < input_dimensions[0]; x++) {
+
+					output_stack.setVoxel(y, z, x, input_image.getStack().getVoxel(x, y, z));
+				}
+			}
+		}
+
+		return new ImagePlus("Reslice of " + input_image.getTitle(), output_stack);
+	}
+
+	static void assertSameImage(String message, ImagePlus expected, ImagePlus actual) {
+
+		assertEquals(message, expected.getWidth(), actual.getWidth());
+		assertEquals(message, expected.getHeight(), actual.getHeight());
+		assertEquals(message, expected.getStackSize(), actual.getStackSize());
+		for (int slice = 1; slice <= expected.getStackSize(); slice++) {
+
+			ImageProcessor expected_ip = expected.getStack().getProcessor(slice);
+			ImageProcessor actual_ip = actual.getStack().getProcessor(slice);
+			for (int i = 0; i < expected_ip.getPixelCount(); i++) {
+
+				if (expected.getBitDepth() == 32) {
+
+					assertEquals(message + ", slice " + slice, expected_ip.getf(i), actual_ip.getf(i), 1e-3);
+
+				} else if (expected.getBitDepth() == 24) {
+
+					// Ignore the alpha byte, which is not saved
+					assertEquals(message + ", slice " + slice, expected_ip.get(i) & 0xffffff, actual_ip.get(i) & 0xffffff);
+
+				} else {
+
+					assertEquals(message + ", slice " + slice, expected_ip.get(i), actual_ip.get(i));
+				}
+			}
+		}
+	}
+
+	static void assertSameStack(ImageStack expected, ImageStack actual) {
+
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		assertEquals(expected.getSize(), actual.getSize());
+		for (int z = 1; z <= expected.getSize(); z++) {
+			for (int i = 0; i < expected.getWidth() * expected.getHeight(); i++) {
+
+				assertEquals("slice " + z + ", pixel " + i, expected.getProcessor(z).get(i), actual.getProcessor(z).get(i));
+			}
+		}
+	}
+
+	static OrthogonalTransform[] createTransforms(long seed, int count, int intervals) {
+
+		// B-spline coefficients scattered over a 60 x 40 image
+		Random random = new Random(seed);
+		OrthogonalTransform[] ot = new OrthogonalTransform[count];
+		for (int n = 0; n < count; n++) {
+
+			double[][] x_coeff = new double[intervals + 3][intervals + 3];
+			double[][] y_coeff = new double[intervals + 3][intervals + 3];
+			for (int i = 0; i < intervals + 3; i++) {
+				for (int j = 0; j < intervals + 3; j++) {
+
+					x_coeff[i][j] = random.nextDouble() * 60;
+					y_coeff[i][j] = random.nextDouble() * 40;
+				}
+			}
+			ot[n] = new OrthogonalTransform(x_coeff, y_coeff, intervals);
+		}
+
+		return ot;
+	}
+
+	static void assertSameTransform(OrthogonalTransform expected, OrthogonalTransform actual, double delta) {
+
+		assertEquals(expected.getIntervals(), actual.getIntervals());
+		assertEquals(expected.getCoefficientsX().length, actual.getCoefficientsX().length);
+		for (int i = 0; i < expected.getCoefficientsX().length; i++) {
+
+			assertArrayEquals(expected.getCoefficientsX()[i], actual.getCoefficientsX()[i], delta);
+			assertArrayEquals(expected.getCoefficientsY()[i], actual.getCoefficientsY()[i], delta);
+		}
+	}
+}
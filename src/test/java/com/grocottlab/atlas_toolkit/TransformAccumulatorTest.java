@@ -0,0 +1,134 @@
+package com.grocottlab.atlas_toolkit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests that TransformAccumulator calculates exactly the same mean as averaging every transform at once, whatever the
+ * order in which the transforms arrive.
+ */
+public class TransformAccumulatorTest {
+
+	static final int INTERVALS = 4;
+
+	@Test
+	public void meanMatchesAverageOfAllTransforms() {
+
+		OrthogonalTransform[] ot = TestData.createTransforms(5, 7, INTERVALS);
+		OrthogonalTransform expected = getMean(ot);
+		TestData.assertSameTransform(expected, OrthogonalTransform.computeAverageTransform(ot), 0);
+
+		TransformAccumulator accumulator = new TransformAccumulator(ot.length);
+		int[] order = {3, 6, 0, 5, 1, 4, 2};
+		for (int i : order) {
+
+			assertFalse(accumulator.isComplete());
+			accumulator.add(i, ot[i]);
+		}
+		assertTrue(accumulator.isComplete());
+		TestData.assertSameTransform(expected, accumulator.getMean(), 0);
+	}
+
+	@Test
+	public void meanDoesNotDependOnArrivalOrder() {
+
+		// Enough transforms of different magnitudes that summing them in another order would round differently
+		OrthogonalTransform[] ot = TestData.createTransforms(10, 40, INTERVALS);
+		for (int n = 0; n < ot.length; n += 3) ot[n] = ot[n].getScaled(1e6, 1e-6);
+		OrthogonalTransform expected = getMean(ot);
+		List<Integer> order = new ArrayList<Integer>();
+		for (int n = 0; n < ot.length; n++) order.add(n);
+		Random random = new Random(11);
+		for (int trial = 0; trial < 20; trial++) {
+
+			Collections.shuffle(order, random);
+			TransformAccumulator accumulator = new TransformAccumulator(ot.length);
+			for (int i : order) accumulator.add(i, ot[i]);
+			TestData.assertSameTransform(expected, accumulator.getMean(), 0);
+		}
+	}
+
+	@Test
+	public void identityMatchesIdentityTransform() {
+
+		OrthogonalTransform[] ot = TestData.createTransforms(6, 5, INTERVALS);
+		ot[2] = OrthogonalTransform.getIdentity(60, 40, INTERVALS);
+		OrthogonalTransform expected = OrthogonalTransform.computeAverageTransform(ot);
+
+		// Added before any transform, so the identity waits for the number of intervals
+		TransformAccumulator accumulator = new TransformAccumulator(ot.length);
+		accumulator.addIdentity(2, 60, 40);
+		assertFalse(accumulator.isComplete());
+		for (int i = ot.length - 1; i >= 0; i--) {
+
+			if (i != 2) accumulator.add(i, ot[i]);
+		}
+		assertTrue(accumulator.isComplete());
+		TestData.assertSameTransform(expected, accumulator.getMean(), 0);
+
+		// Added after the first transform
+		accumulator = new TransformAccumulator(ot.length);
+		accumulator.add(0, ot[0]);
+		accumulator.addIdentity(2, 60, 40);
+		for (int i = 1; i < ot.length; i++) {
+
+			if (i != 2) accumulator.add(i, ot[i]);
+		}
+		TestData.assertSameTransform(expected, accumulator.getMean(), 0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void incompleteMeanIsRefused() {
+
+		OrthogonalTransform[] ot = TestData.createTransforms(7, 3, INTERVALS);
+		TransformAccumulator accumulator = new TransformAccumulator(ot.length);
+		accumulator.add(0, ot[0]);
+		accumulator.add(2, ot[2]);
+		accumulator.getMean();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void duplicateTransformIsRefused() {
+
+		OrthogonalTransform[] ot = TestData.createTransforms(8, 3, INTERVALS);
+		TransformAccumulator accumulator = new TransformAccumulator(ot.length);
+		accumulator.add(1, ot[1]);
+		accumulator.add(1, ot[1]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void outOfRangeTransformIsRefused() {
+
+		OrthogonalTransform[] ot = TestData.createTransforms(9, 3, INTERVALS);
+		TransformAccumulator accumulator = new TransformAccumulator(ot.length);
+		accumulator.add(3, ot[0]);
+	}
+
+	static OrthogonalTransform getMean(OrthogonalTransform[] ot) {
+
+		// The original average: sum every coefficient over the group in index order, then divide
+		double[][] x_coeff = new double[INTERVALS + 3][INTERVALS + 3];
+		double[][] y_coeff = new double[INTERVALS + 3][INTERVALS + 3];
+		for (int i = 0; i < INTERVALS + 3; i++) {
+			for (int j = 0; j < INTERVALS + 3; j++) {
+
+				double x_total = 0;
+				double y_total = 0;
+				for (int n = 0; n < ot.length; n++) {
+
+					x_total = x_total + ot[n].getCoefficientsX()[i][j];
+					y_total = y_total + ot[n].getCoefficientsY()[i][j];
+				}
+				x_coeff[i][j] = x_total / (double)ot.length;
+				y_coeff[i][j] = y_total / (double)ot.length;
+			}
+		}
+
+		return new OrthogonalTransform(x_coeff, y_coeff, INTERVALS);
+	}
+}